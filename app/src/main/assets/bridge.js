@@ -25,8 +25,11 @@ const CueBridge = window.CueBridge || {
 const V = '1.6.0', MAX_MSG = 100;
 const BUILD_DATE = '2026-02-22';
 let ST = { routines: [], iconLib: [], settings: { defaultBubble: false, highPriority: true, design: '2', theme: 'default', lastSeqId: 0 } };
-let CR = { step: 0, selected: [], multi: false, cond: 'launched', dur: 20, unit: 'm', timeMode: 'session', icon: null, titleOn: false, title: '', msg: '', bubble: false, timeout: 0, cueName: '' };
+let CR = { step: 0, selected: [], multi: false, cond: 'launched', dur: 20, unit: 'm', timeMode: 'session', period: 'day', icon: null, titleOn: false, title: '', msg: '', bubble: false, timeout: 0, cueName: '' };
 let APPS = [];
+let APP_ICONS = {};
+let ROUTINE_REV = 0;
+let ROUTINE_ICONS = {};
 
 const PRESETS = [
     { e: '🔔', l: 'Bell' }, { e: '🚀', l: 'Launch' }, { e: '⚡', l: 'Flash' }, { e: '🎯', l: 'Target' },
@@ -52,17 +55,98 @@ const DESIGNS = [
     { id: '2', label: 'Minimal', desc: 'Flat lines, restrained type' },
 ];
 
+// ── ASYNC BRIDGE ──
+// Calls made in the same frame go to Java as one batch and resolve together;
+// JSON results arrive already parsed. Batches are answered in the order they were sent.
+let RPC_SEQ = 0, RPC_QUEUE = [], RPC_WAITING = new Map(), RPC_FLUSH = false, RPC_SENT = [];
+
+function rpc(method, ...args) {
+    if (!CueBridge.call) {
+        return new Promise(res => setTimeout(() => {
+            const v = CueBridge[method](...args);
+            try { res(typeof v === 'string' ? JSON.parse(v) : v); } catch (e) { res(v); }
+        }));
+    }
+    return new Promise((resolve, reject) => {
+        const id = ++RPC_SEQ;
+        RPC_WAITING.set(id, { resolve, reject });
+        RPC_QUEUE.push({ id, method, args });
+        if (!RPC_FLUSH) {
+            RPC_FLUSH = true;
+            (window.requestAnimationFrame || setTimeout)(flushRpc);
+        }
+    });
+}
+
+function flushRpc() {
+    RPC_FLUSH = false;
+    const batch = RPC_QUEUE;
+    RPC_QUEUE = [];
+    if (!batch.length) return;
+    const ids = batch.map(r => r.id);
+    RPC_SENT.push(ids);
+    try {
+        CueBridge.call(JSON.stringify(batch));
+    } catch (e) {
+        RPC_SENT.pop();
+        rejectRpc(ids, 'bridge call failed: ' + e);
+    }
+}
+
+window.onBridgeResults = function (json) {
+    const ids = RPC_SENT.shift() || [];
+    let results = [];
+    try {
+        results = JSON.parse(json);
+    } catch (e) {
+        console.warn('Bridge Results Error: ' + e);
+    }
+    results.forEach(r => {
+        const w = RPC_WAITING.get(r.id);
+        if (!w) return;
+        RPC_WAITING.delete(r.id);
+        if (r.error) w.reject(new Error(r.error)); else w.resolve(r.result);
+    });
+    // A malformed batch comes back short; nothing else will answer the rest
+    rejectRpc(ids, 'no result');
+};
+
+function rejectRpc(ids, reason) {
+    ids.forEach(id => {
+        const w = RPC_WAITING.get(id);
+        if (!w) return;
+        RPC_WAITING.delete(id);
+        w.reject(new Error(reason));
+    });
+}
+
 // ── PERSISTENCE (DELEGATED TO JAVA) ──
 function save() {
-    CueBridge.saveSettings(JSON.stringify(ST.settings));
+    rpc('saveSettings', JSON.stringify(ST.settings));
 }
 
+// Preloaded by the activity while the WebView started; null on older bridges or if it was late
+let BOOT = null;
+
 function load() {
     try {
-        const routinesJson = CueBridge.getRoutines();
+        BOOT = CueBridge.getBootstrap ? JSON.parse(CueBridge.getBootstrap() || 'null') : null;
+    } catch (e) {
+        console.warn('Bootstrap Error: ' + e);
+    }
+    if (BOOT) {
+        applySnapshot(BOOT.snapshot);
+        ST.settings = Object.assign(ST.settings, BOOT.settings);
+        if (BOOT.apps) {
+            APPS = BOOT.apps;
+            window.appsLoading = false;
+        }
+        return;
+    }
+    try {
         const settingsJson = CueBridge.getSettings();
 
-        ST.routines = JSON.parse(routinesJson || "[]");
+        syncRoutines();
         const settings = JSON.parse(settingsJson || "{}");
         ST.settings = Object.assign(ST.settings, settings);
         // APPS will be loaded via onAppsUpdated callback
@@ -71,28 +155,85 @@ function load() {
     }
 }
 
+// Routines carry icon refs instead of base64; see routineIconSrc
+function syncRoutines() {
+    applySnapshot(JSON.parse(CueBridge.getRoutineSnapshot ? CueBridge.getRoutineSnapshot() : '{"rev":0,"routines":' + CueBridge.getRoutines() + '}'));
+}
+
+function applySnapshot(snap) {
+    ST.routines = snap.routines || [];
+    ROUTINE_REV = snap.rev;
+    ROUTINE_ICONS = {};
+}
+
 // ── JAVA CALLBACKS ──
 window.onRoutinesUpdated = function (json) {
     ST.routines = JSON.parse(json);
     if (curTab === 'list') renderList();
 };
 
+// { base, rev, upserted, deleted, order? }; a delta not based on our revision means we missed one
+window.onRoutinesDelta = function (json) {
+    const d = JSON.parse(json);
+    if (d.base !== ROUTINE_REV) {
+        syncRoutines();
+    } else {
+        const changed = new Set(d.deleted.concat(d.upserted.map(r => r.id)));
+        Object.keys(ROUTINE_ICONS).forEach(ref => {
+            if (changed.has(ref.slice(8, ref.lastIndexOf(':')))) delete ROUTINE_ICONS[ref];
+        });
+        const byId = new Map();
+        ST.routines.forEach(r => { if (!changed.has(r.id)) byId.set(r.id, r); });
+        d.upserted.forEach(r => byId.set(r.id, r));
+        const order = d.order || ST.routines.map(r => r.id).filter(id => byId.has(id));
+        ST.routines = order.map(id => byId.get(id)).filter(Boolean);
+        ROUTINE_REV = d.rev;
+    }
+    if (curTab === 'list') renderList();
+};
+
+// Either the full app list, or { upserted, removed } after an install, update or uninstall
 window.onAppsUpdated = function (json) {
-    APPS = JSON.parse(json);
+    const data = JSON.parse(json);
+    if (Array.isArray(data)) {
+        APPS = data;
+    } else {
+        const gone = new Set(data.removed.concat(data.upserted.map(a => a.pkg)));
+        APPS = APPS.filter(a => !gone.has(a.pkg)).concat(data.upserted);
+    }
     window.appsLoading = false;
     if (curTab === 'create' && CR.step === 0) renderCreate();
 };
 
+// Icons arrive in batches after the app list; fill in any placeholders already on screen
+window.onAppIcons = function (json) {
+    const batch = JSON.parse(json);
+    Object.assign(APP_ICONS, batch);
+    document.querySelectorAll('img[data-icon-key]').forEach(img => {
+        const src = batch[img.dataset.iconKey];
+        if (src) { img.src = src; img.style.visibility = ''; }
+    });
+};
+
+function appIconSrc(a) { return a.icon || APP_ICONS[a.iconKey] || ''; }
+
+function appIconHtml(a, px) {
+    const src = appIconSrc(a);
+    if (src && !src.startsWith('data:')) return src;
+    const key = a.iconKey ? ` data-icon-key="${a.iconKey}"` : '';
+    return src ? `<img${key} src="${src}" style="width:${px}px;height:${px}px">`
+        : `<img${key} style="width:${px}px;height:${px}px;visibility:hidden">`;
+}
+
 window.checkPermissions = function() {
-    try {
-        const status = JSON.parse(CueBridge.checkPermissionsStatus());
+    rpc('checkPermissionsStatus').then(status => {
         if (!status.usage || !status.accessibility) {
             showPermissionWarning(status);
         } else if (status.accessibility && status.lastAccEvent === 0 && status.hasActiveRoutines) {
             showAccessibilityUnusableWarning();
         }
         if (curTab === 'settings') renderSettings();
-    } catch(e) { console.error("Error checking permissions: " + e); }
+    }).catch(e => console.error("Error checking permissions: " + e));
 };
 
 function showAccessibilityUnusableWarning() {
@@ -239,7 +380,7 @@ function renderAppSel() {
 function appRow(a) {
     const sel = CR.selected.some(s => s.pkg === a.pkg);
     return `<div class="app-item${sel ? ' selected' : ''}" onclick="toggleApp('${a.pkg}')" data-pkg="${a.pkg}">
-    <div class="app-icon-box">${a.icon.startsWith('data:') ? `<img src="${a.icon}" style="width:28px;height:28px">` : a.icon}</div>
+    <div class="app-icon-box">${appIconHtml(a, 28)}</div>
     <div class="app-info"><div class="app-name">${a.name}</div><div class="app-pkg">${a.pkg}</div></div>
     <div class="app-check"><svg class="app-chk-svg" viewBox="0 0 24 24" fill="none" stroke="white" stroke-width="3"><polyline points="20 6 9 17 4 12"/></svg></div>
   </div>`;
@@ -287,7 +428,7 @@ function renderFnCfg() {
     const apps = CR.selected;
     const appIcons = apps.map(a => `
     <div class="icon-opt${CR.icon?.type === 'app' && CR.icon?.pkg === a.pkg ? ' sel' : ''}" onclick="pickIcon('app','${a.pkg}')">
-      <div class="ico">${a.icon.startsWith('data:') ? `<img src="${a.icon}" style="width:28px;height:28px">` : a.icon}</div><span>${a.name}</span>
+      <div class="ico">${appIconHtml(a, 28)}</div><span>${a.name}</span>
     </div>`).join('');
 
     return `<div class="step-bar"><div class="step-dot done"></div><div class="step-dot done"></div></div>
@@ -295,7 +436,7 @@ function renderFnCfg() {
     <button onclick="backToSel()" class="btn-ghost" style="width:auto;padding:6px 14px;font-size:11px">← Back to apps</button>
   </div>
   <div style="padding:12px 20px;border-bottom:var(--line);display:flex;flex-wrap:wrap;gap:6px">
-    ${apps.map(a => `<span class="chip on">${a.icon.startsWith('data:') ? `<img src="${a.icon}" style="width:16px;height:16px">` : a.icon} ${a.name}</span>`).join('')}
+    ${apps.map(a => `<span class="chip on">${appIconHtml(a, 16)} ${a.name}</span>`).join('')}
   </div>
   <div style="padding:10px 20px 4px;font-size:10px;font-weight:500;letter-spacing:.1em;text-transform:uppercase;color:var(--txt3)">Condition</div>
   <label class="chk-row${CR.cond === 'launched' ? ' sel' : ''}"><input type="radio" name="cond" value="launched" ${CR.cond === 'launched' ? 'checked' : ''} onchange="setCond('launched')"><span class="row-label">When Launched</span></label>
@@ -308,6 +449,9 @@ function renderFnCfg() {
         <div onclick="CR.timeMode='total';renderCreate();showFab('Save')" style="flex:1;padding:10px 8px;border-radius:var(--rad2);border:1px solid ${CR.timeMode === 'total' ? 'var(--acc)' : 'var(--bg4)'};background:${CR.timeMode === 'total' ? 'var(--acc-dim)' : 'var(--bg3)'};cursor:pointer;text-align:center">
             <div style="font-size:12px;font-weight:600;color:${CR.timeMode === 'total' ? 'var(--acc)' : 'var(--txt)'};margin-bottom:3px">Total (24h)</div>
         </div>
+        <div onclick="CR.timeMode='shared';renderCreate();showFab('Save')" style="flex:1;padding:10px 8px;border-radius:var(--rad2);border:1px solid ${CR.timeMode === 'shared' ? 'var(--acc)' : 'var(--bg4)'};background:${CR.timeMode === 'shared' ? 'var(--acc-dim)' : 'var(--bg3)'};cursor:pointer;text-align:center">
+            <div style="font-size:12px;font-weight:600;color:${CR.timeMode === 'shared' ? 'var(--acc)' : 'var(--txt)'};margin-bottom:3px">Shared</div>
+        </div>
     </div>
     <div style="padding:0 20px 12px;display:flex;align-items:center;gap:8px">
       <input id="dur-v" type="number" min="1" value="${CR.dur}" class="form-input" style="width:68px" oninput="CR.dur=+this.value">
@@ -316,7 +460,12 @@ function renderFnCfg() {
         <option value="h" ${CR.unit === 'h' ? 'selected' : ''}>hr</option>
         <option value="s" ${CR.unit === 's' ? 'selected' : ''}>sec</option>
       </select>
+      ${CR.timeMode === 'shared' ? `<select class="form-input" style="width:96px" onchange="CR.period=this.value">
+        <option value="day" ${CR.period === 'day' ? 'selected' : ''}>per day</option>
+        <option value="week" ${CR.period === 'week' ? 'selected' : ''}>per week</option>
+      </select>` : ''}
     </div>
+    ${CR.timeMode === 'shared' ? '<div style="padding:0 20px 12px;font-size:11px;color:var(--txt3)">One limit for all selected apps together</div>' : ''}
   </div>
   <label class="chk-row${CR.cond === 'exiting' ? ' sel' : ''}"><input type="radio" name="cond" value="exiting" ${CR.cond === 'exiting' ? 'checked' : ''} onchange="setCond('exiting')"><span class="row-label">When Exiting</span></label>
 
@@ -356,7 +505,7 @@ function renderFnCfg() {
 function backToSel() { CR.step = 0; renderCreate(); updateFab(); }
 function setCond(c) { CR.cond = c; renderCreate(); }
 function pickIcon(type, val) {
-    if (type === 'app') CR.icon = { type: 'app', pkg: val, src: APPS.find(a => a.pkg === val)?.icon };
+    if (type === 'app') { const app = APPS.find(a => a.pkg === val); CR.icon = { type: 'app', pkg: val, src: app ? appIconSrc(app) : undefined }; }
     else if (type === 'preset') CR.icon = { type: 'preset', e: val, src: val };
     renderCreate();
 }
@@ -383,21 +532,22 @@ function saveRoutine() {
         id: Date.now().toString(),
         seqId: seqId,
         cueName: cueName,
-        apps: CR.selected.map(a => ({ name: a.name, pkg: a.pkg, icon: a.icon })),
+        apps: CR.selected.map(a => ({ name: a.name, pkg: a.pkg, icon: appIconSrc(a) })),
         cond: CR.cond, dur: CR.dur, unit: CR.unit, timeMode: CR.timeMode,
+        period: CR.timeMode === 'shared' ? CR.period : undefined,
         icon: CR.icon, title: CR.title, msg,
         bubble: CR.bubble, enabled: true,
         highPriority: CR.highPriority,
         timeout: CR.timeout
     };
-    CueBridge.saveRoutine(JSON.stringify(r));
+    rpc('saveRoutine', JSON.stringify(r));
     save(); // Save lastSeqId
     snack('Routine saved!');
     resetCreate(); switchTab('list');
 }
 
 function resetCreate() {
-    CR = { step: 0, selected: [], multi: false, cond: 'launched', dur: 20, unit: 'm', timeMode: 'session', icon: null, titleOn: false, title: '', msg: '', bubble: false, timeout: 0, highPriority: ST.settings.highPriority, cueName: '' };
+    CR = { step: 0, selected: [], multi: false, cond: 'launched', dur: 20, unit: 'm', timeMode: 'session', period: 'day', icon: null, titleOn: false, title: '', msg: '', bubble: false, timeout: 0, highPriority: ST.settings.highPriority, cueName: '' };
     renderCreate(); hideFab();
 }
 
@@ -408,18 +558,34 @@ function renderList() {
         el.innerHTML = `<div class="empty"><p>No routines yet.</p></div>`;
         return;
     }
+    loadRoutineIcons(ST.routines);
     el.innerHTML = ST.routines.map(r => routineCard(r)).join('');
 }
 
+function routineIconOwner(r) {
+    return r.icon && (r.icon.src || r.icon.iconRef) ? r.icon : r.apps[0];
+}
+
+function routineIconSrc(r) {
+    const o = routineIconOwner(r);
+    return (o === r.icon ? o.src : o.icon) || ROUTINE_ICONS[o.iconRef] || '';
+}
+
+// Fetches, in one call, whichever referenced icons aren't cached yet
+function loadRoutineIcons(routines) {
+    const refs = routines.map(r => routineIconOwner(r).iconRef).filter(ref => ref && !(ref in ROUTINE_ICONS));
+    if (!refs.length || !CueBridge.getIcons) return;
+    Object.assign(ROUTINE_ICONS, JSON.parse(CueBridge.getIcons(JSON.stringify(refs))));
+}
+
 function rIcon(r) {
-    if (r.icon && r.icon.src) {
-        return r.icon.src.startsWith('data:') ? `<img src="${r.icon.src}" style="width:28px;height:28px">` : r.icon.src;
-    }
-    return r.apps[0].icon.startsWith('data:') ? `<img src="${r.apps[0].icon}" style="width:28px;height:28px">` : r.apps[0].icon;
+    const src = routineIconSrc(r);
+    return src.startsWith('data:') ? `<img src="${src}" style="width:28px;height:28px">` : src;
 }
 
 function routineCard(r) {
-    const lbl = r.cond === 'launched' ? 'On launch' : r.cond === 'exiting' ? 'On exit' : `After ${r.dur}${r.unit}`;
+    const lbl = r.cond === 'launched' ? 'On launch' : r.cond === 'exiting' ? 'On exit'
+        : r.timeMode === 'shared' ? `${r.dur}${r.unit} shared per ${r.period || 'day'}` : `After ${r.dur}${r.unit}`;
     return `<div class="rcard" onclick="openDetail('${r.id}')">
     <div class="rcard-icon">${rIcon(r)}</div>
     <div style="flex:1">
@@ -427,7 +593,7 @@ function routineCard(r) {
       <div class="rcard-sub">${lbl}</div>
     </div>
     <label class="toggle" onclick="event.stopPropagation()">
-      <input type="checkbox" ${r.enabled ? 'checked' : ''} onchange="CueBridge.toggleRoutine('${r.id}', this.checked)">
+      <input type="checkbox" ${r.enabled ? 'checked' : ''} onchange="rpc('toggleRoutine', '${r.id}', this.checked)">
       <div class="toggle-track"></div>
     </label>
   </div>`;
@@ -449,7 +615,7 @@ function openDetail(id) {
 }
 
 function deleteR(id) {
-    CueBridge.deleteRoutine(id);
+    rpc('deleteRoutine', id);
     closeSheet();
 }
 
@@ -504,6 +670,7 @@ function renderSettings() {
     <div class="sec">
         <div class="row" onclick="window.appsLoading=true;renderCreate();CueBridge.rescanApps()"><div class="row-label">Rescan Installed Apps</div><span style="font-size:16px">↻</span></div>
         <div class="row" onclick="exportData()"><div class="row-label">Export Routines (JSON)</div><span style="font-size:16px">↗</span></div>
+        ${CueBridge.importRoutines ? '<div class="row" onclick="CueBridge.importRoutines()"><div class="row-label">Import Routines (JSON)</div><span style="font-size:16px">↙</span></div>' : ''}
         <div class="row" onclick="openAbout()"><div class="row-label">About CueAside</div><span style="font-size:16px">›</span></div>
     </div>
 
@@ -515,10 +682,15 @@ function renderSettings() {
 }
 
 function exportData() {
+    // Streamed to a file the user picks; see onRoutineTransfer
+    if (CueBridge.exportRoutines) {
+        CueBridge.exportRoutines(V);
+        return;
+    }
     const data = {
         v: V,
         exported: new Date().toISOString(),
-        routines: ST.routines,
+        routines: JSON.parse(CueBridge.getRoutines()),
         settings: ST.settings
     };
     const j = JSON.stringify(data, null, 2);
@@ -529,6 +701,26 @@ function exportData() {
     snack('Exported routines');
 }
 
+// { op: 'export', count } or { op: 'import', added, replaced, skipped, maxSeqId, problems }, or { error };
+// imported routines themselves arrive as one onRoutinesDelta
+window.onRoutineTransfer = function (json) {
+    const r = JSON.parse(json);
+    if (r.error) {
+        snack((r.op === 'import' ? 'Import' : 'Export') + ' failed: ' + r.error);
+        return;
+    }
+    if (r.op === 'export') {
+        snack(`Exported ${r.count} routines`);
+        return;
+    }
+    if (r.maxSeqId > (ST.settings.lastSeqId || 0)) {
+        ST.settings.lastSeqId = r.maxSeqId;
+        save();
+    }
+    if (r.problems.length) console.warn('Skipped on import: ' + r.problems.join('; '));
+    snack(`Imported ${r.added + r.replaced} routines` + (r.skipped ? `, skipped ${r.skipped}` : ''));
+};
+
 function clearAllData() {
     if (confirm('Delete ALL routines and settings? This cannot be undone.')) {
         ST.routines = [];
@@ -566,5 +758,12 @@ function openAbout() {
     applyTheme(ST.settings.theme || 'default');
     applyDesign(ST.settings.design || '2');
     renderCreate();
-    setTimeout(window.checkPermissions, 1000);
+    // Missing permissions are known from the bootstrap; the liveness check still waits for the service
+    const status = BOOT && BOOT.permissions;
+    if (status && (!status.usage || !status.accessibility)) {
+        showPermissionWarning(status);
+    } else {
+        setTimeout(window.checkPermissions, 1000);
+    }
+    if (CueBridge.reportInteractive) requestAnimationFrame(() => setTimeout(() => CueBridge.reportInteractive()));
 })();
@@ -0,0 +1,109 @@
+package foz.cueaside.aa;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.util.Base64;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * App icons rendered once at the size the picker shows them and kept on disk,
+ * keyed by package and version code so an update naturally invalidates the entry.
+ */
+class AppIconCache {
+    private static final String TAG = "AppIconCache";
+    private static final String DIR_NAME = "app_icons";
+    // Matches the 28px icon boxes in the front end
+    private static final int ICON_DP = 28;
+    private static final String PNG_PREFIX = "data:image/png;base64,";
+
+    private final File dir;
+    private final int sizePx;
+
+    AppIconCache(Context context) {
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+        float density = context.getResources().getDisplayMetrics().density;
+        this.sizePx = Math.max(1, Math.round(ICON_DP * density));
+    }
+
+    static String key(String pkg, long versionCode) {
+        return pkg + "@" + versionCode;
+    }
+
+    // Safe to call from several threads at once; each key maps to its own file
+    String loadDataUri(PackageManager pm, String pkg, String key) throws PackageManager.NameNotFoundException {
+        long start = Diagnostics.begin(Diagnostics.ICON_ENCODE);
+        try {
+            File file = new File(dir, key + ".png");
+            byte[] png = file.exists() ? read(file) : null;
+            if (png == null) {
+                png = render(pm.getApplicationIcon(pkg));
+                write(file, png);
+            }
+            return PNG_PREFIX + Base64.encodeToString(png, Base64.NO_WRAP);
+        } finally {
+            Diagnostics.end(Diagnostics.ICON_ENCODE, start);
+        }
+    }
+
+    // Drops icons for apps that were removed or updated since they were cached
+    void prune(Set<String> liveKeys) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            String key = name.endsWith(".png") ? name.substring(0, name.length() - 4) : name;
+            if (!liveKeys.contains(key) && !f.delete()) {
+                Log.w(TAG, "Could not delete stale icon " + name);
+            }
+        }
+    }
+
+    private byte[] render(Drawable drawable) {
+        Bitmap bitmap = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, sizePx, sizePx);
+        drawable.draw(canvas);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        bitmap.recycle();
+        return stream.toByteArray();
+    }
+
+    private static byte[] read(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            int n;
+            while (off < data.length && (n = in.read(data, off, data.length - off)) > 0) {
+                off += n;
+            }
+            return off == data.length ? data : null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading cached icon " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void write(File file, byte[] png) {
+        if (!dir.exists() && !dir.mkdirs()) return;
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(png);
+        } catch (IOException e) {
+            Log.e(TAG, "Error caching icon " + file.getName() + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+}
@@ -0,0 +1,291 @@
+package foz.cueaside.aa;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Installed, user-visible apps kept on disk between launches. It is enumerated in full
+ * only when there is nothing usable on disk; afterwards it follows package broadcasts
+ * and, on Android 8+, the package manager's change sequence for anything missed while
+ * the process was dead.
+ */
+class AppIndex {
+    private static final String TAG = "AppIndex";
+    private static final String FILE_NAME = "app_index.json";
+    // The change sequence restarts on reboot, so boots more than this far apart differ
+    private static final long BOOT_TOLERANCE_MS = 10 * 1000L;
+
+    interface OnAppsChangedListener {
+        void onAppsChanged(List<Routine.AppInfo> upserted, List<String> removed);
+    }
+
+    private static final class Snapshot {
+        long bootTime;
+        int sequence;
+        List<Routine.AppInfo> apps;
+    }
+
+    private static AppIndex instance;
+
+    private final Context context;
+    private final AtomicFile file;
+    private final Gson gson = new Gson();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final CopyOnWriteArrayList<OnAppsChangedListener> listeners = new CopyOnWriteArrayList<>();
+    // Only touched on the executor thread
+    private final Map<String, Routine.AppInfo> apps = new LinkedHashMap<>();
+    private boolean loaded;
+    private int sequence;
+
+    static synchronized AppIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new AppIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AppIndex(Context context) {
+        this.context = context;
+        this.file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(packageReceiver, filter);
+    }
+
+    void addOnAppsChangedListener(OnAppsChangedListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    void removeOnAppsChangedListener(OnAppsChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Delivers the current list on the index thread; cheap after the first load
+    void getApps(Callback callback) {
+        executor.execute(() -> {
+            ensureLoaded();
+            callback.onApps(new ArrayList<>(apps.values()));
+        });
+    }
+
+    List<Routine.AppInfo> getAppsNow() {
+        try {
+            return executor.submit(() -> {
+                ensureLoaded();
+                return new ArrayList<>(apps.values());
+            }).get();
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting apps: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    // Like getAppsNow(), but null rather than waiting on a first full enumeration
+    List<Routine.AppInfo> getCachedAppsNow() {
+        try {
+            return executor.submit(() -> {
+                if (!loaded && !file.getBaseFile().exists()) return null;
+                ensureLoaded();
+                return new ArrayList<>(apps.values());
+            }).get();
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting cached apps: " + e.getMessage());
+            return null;
+        }
+    }
+
+    void rebuild(Callback callback) {
+        executor.execute(() -> {
+            rebuildAll(false);
+            loaded = true;
+            callback.onApps(new ArrayList<>(apps.values()));
+        });
+    }
+
+    interface Callback {
+        void onApps(List<Routine.AppInfo> apps);
+    }
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            Uri data = intent.getData();
+            if (data == null) return;
+            String pkg = data.getSchemeSpecificPart();
+            String action = intent.getAction();
+            // An update sends REMOVED and ADDED with EXTRA_REPLACING, then REPLACED; act on the last only
+            if (!Intent.ACTION_PACKAGE_REPLACED.equals(action) && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) return;
+            executor.execute(() -> {
+                if (!loaded) return;
+                applyChanges(Collections.singletonList(pkg));
+                persist();
+            });
+        }
+    };
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        Snapshot saved = read();
+        if (saved == null || saved.apps == null) {
+            rebuildAll(false);
+            return;
+        }
+        for (Routine.AppInfo info : saved.apps) {
+            apps.put(info.pkg, info);
+        }
+        sequence = saved.sequence;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && Math.abs(saved.bootTime - bootTime()) < BOOT_TOLERANCE_MS) {
+            ChangedPackages changed = context.getPackageManager().getChangedPackages(sequence);
+            if (changed != null) {
+                sequence = changed.getSequenceNumber();
+                applyChanges(changed.getPackageNames());
+                persist();
+            }
+        } else {
+            // No way to ask what changed since a previous boot: serve the saved list first,
+            // then re-enumerate behind it and send whatever differs as a delta
+            executor.execute(() -> rebuildAll(true));
+        }
+    }
+
+    private void rebuildAll(boolean notify) {
+        Map<String, Routine.AppInfo> fresh = new LinkedHashMap<>();
+        PackageManager pm = context.getPackageManager();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ChangedPackages changed = pm.getChangedPackages(0);
+            sequence = changed != null ? changed.getSequenceNumber() : 0;
+        }
+        try {
+            for (PackageInfo pkg : pm.getInstalledPackages(0)) {
+                Routine.AppInfo info = describe(pm, pkg);
+                if (info != null) fresh.put(info.pkg, info);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting apps: " + e.getMessage());
+            return;
+        }
+
+        List<Routine.AppInfo> upserted = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String pkg : apps.keySet()) {
+            if (!fresh.containsKey(pkg)) removed.add(pkg);
+        }
+        for (Routine.AppInfo info : fresh.values()) {
+            Routine.AppInfo old = apps.get(info.pkg);
+            if (old == null || !old.iconKey.equals(info.iconKey) || !old.name.equals(info.name)) upserted.add(info);
+        }
+        apps.clear();
+        apps.putAll(fresh);
+        persist();
+        if (notify) notifyChanged(upserted, removed);
+    }
+
+    private void applyChanges(List<String> packages) {
+        PackageManager pm = context.getPackageManager();
+        List<Routine.AppInfo> upserted = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String pkg : packages) {
+            Routine.AppInfo info = null;
+            try {
+                info = describe(pm, pm.getPackageInfo(pkg, 0));
+            } catch (PackageManager.NameNotFoundException e) {
+                // Uninstalled
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing app " + pkg + ": " + e.getMessage());
+                continue;
+            }
+            if (info != null) {
+                apps.put(pkg, info);
+                upserted.add(info);
+            } else if (apps.remove(pkg) != null) {
+                removed.add(pkg);
+            }
+        }
+        notifyChanged(upserted, removed);
+    }
+
+    private void notifyChanged(List<Routine.AppInfo> upserted, List<String> removed) {
+        if (upserted.isEmpty() && removed.isEmpty()) return;
+        for (OnAppsChangedListener l : listeners) {
+            l.onAppsChanged(upserted, removed);
+        }
+    }
+
+    // Filter system apps but keep system apps that have been updated
+    private static Routine.AppInfo describe(PackageManager pm, PackageInfo pkg) {
+        ApplicationInfo app = pkg.applicationInfo;
+        if (app == null || ((app.flags & ApplicationInfo.FLAG_SYSTEM) != 0 && (app.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0)) {
+            return null;
+        }
+        Routine.AppInfo info = new Routine.AppInfo();
+        info.name = pm.getApplicationLabel(app).toString();
+        info.pkg = app.packageName;
+        info.iconKey = AppIconCache.key(app.packageName, versionCode(pkg));
+        return info;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long versionCode(PackageInfo pkg) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return pkg.getLongVersionCode();
+        }
+        return pkg.versionCode;
+    }
+
+    private static long bootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    private Snapshot read() {
+        if (!file.getBaseFile().exists()) return null;
+        try {
+            return gson.fromJson(new String(file.readFully(), StandardCharsets.UTF_8), Snapshot.class);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading app index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void persist() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.bootTime = bootTime();
+        snapshot.sequence = sequence;
+        snapshot.apps = new ArrayList<>(apps.values());
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            out.write(gson.toJson(snapshot).getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(out);
+        } catch (Exception e) {
+            if (out != null) file.failWrite(out);
+            Log.e(TAG, "Error saving app index: " + e.getMessage());
+        }
+    }
+}
@@ -1,142 +1,139 @@
 package foz.cueaside.aa;
 
 import android.accessibilityservice.AccessibilityService;
-import android.app.usage.UsageStats;
-import android.app.usage.UsageStatsManager;
-import android.content.Context;
+import android.accessibilityservice.AccessibilityServiceInfo;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
-public class AppTrackerService extends AccessibilityService {
+public class AppTrackerService extends AccessibilityService implements TrackerCore.Source {
     private static final String TAG = "AppTrackerService";
-    private RoutineManager routineManager;
-    private String lastPackageName = "";
-    private android.os.Handler usageHandler = new android.os.Handler();
-    private static long lastEventTime = 0;
+    static final String BACKEND = "accessibility";
+    private TrackerCore core;
+    private volatile EventPipeline pipeline;
+    // What the routines need, and what is applied given the app in front
+    private EventSubscription scoped = EventSubscription.GLOBAL;
+    private EventSubscription subscription;
+    private String foreground;
+    // Uptime of the last window event; converted to wall time only when someone asks
+    private static volatile long lastEventUptime = 0;
+    private static EventPipeline activePipeline;
 
     public static long getLastEventTime() {
-        return lastEventTime;
+        long uptime = lastEventUptime;
+        return uptime == 0 ? 0 : System.currentTimeMillis() - (SystemClock.uptimeMillis() - uptime);
+    }
+
+    public static int getEventQueueDepth() {
+        EventPipeline p = activePipeline;
+        return p != null ? p.getQueueDepth() : 0;
+    }
+
+    public static long getDroppedEventCount() {
+        EventPipeline p = activePipeline;
+        return p != null ? p.getDroppedCount() : 0;
+    }
+
+    public static long getCollapsedEventCount() {
+        EventPipeline p = activePipeline;
+        return p != null ? p.getCollapsedCount() : 0;
     }
 
     @Override
     protected void onServiceConnected() {
         super.onServiceConnected();
         Log.d(TAG, "Service Connected");
-        routineManager = new RoutineManager(this);
+        // Window events are exact, so the polling fallback steps aside
+        UsagePollService.stop(this);
+        core = new TrackerCore(this, BACKEND, this);
+        core.start();
     }
 
     @Override
-    public void onAccessibilityEvent(AccessibilityEvent event) {
-        lastEventTime = System.currentTimeMillis();
+    public void start(TrackerCore core) {
+        pipeline = new EventPipeline(core.worker(), core.input());
+        activePipeline = pipeline;
+    }
+
+    @Override
+    public void onIndexChanged(TriggerIndex index) {
+        updateSubscription(index);
+    }
+
+    @Override
+    public synchronized void onForeground(String packageName) {
+        foreground = packageName;
+        applySubscription(scoped.whileInFront(packageName));
+    }
+
+    @Override
+    public void stop() {
+        activePipeline = null;
+        pipeline = null;
+    }
+
+    // Narrows the system's event stream to what the routines need; only rebinds when that changes.
+    // The usage journal charges time to whatever was last seen, so while it records nothing is narrowed
+    private synchronized void updateSubscription(TriggerIndex index) {
+        TrackerCore c = core;
+        scoped = c == null || c.keepsHistory() ? EventSubscription.GLOBAL : EventSubscription.of(index, homePackages());
+        applySubscription(scoped.whileInFront(foreground));
+    }
+
+    private void applySubscription(EventSubscription next) {
+        if (next.equals(subscription)) return;
         try {
-            if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
-                String packageName = event.getPackageName() != null ? event.getPackageName().toString() : "";
-                if (!packageName.equals(lastPackageName)) {
-                    handleAppChange(lastPackageName, packageName);
-                    lastPackageName = packageName;
-                }
-            }
+            AccessibilityServiceInfo info = getServiceInfo();
+            if (info == null) return;
+            next.applyTo(info);
+            setServiceInfo(info);
+            subscription = next;
+            Log.d(TAG, next.isGlobal() ? "Tracking all packages" : "Tracking " + next.packages.length + " packages");
         } catch (Exception e) {
-            Log.e(TAG, "Error in onAccessibilityEvent: " + e.getMessage());
+            Log.e(TAG, "Error updating event subscription: " + e.getMessage());
         }
     }
 
-    private void handleAppChange(String oldPkg, String newPkg) {
+    // Every switch between apps normally passes through one of these
+    private List<String> homePackages() {
+        List<String> pkgs = new ArrayList<>();
         try {
-            usageHandler.removeCallbacksAndMessages(null);
-            List<Routine> routines = routineManager.getRoutines();
-            if (routines == null) return;
-            for (Routine r : routines) {
-                if (!r.enabled) continue;
-
-                // Check if routine targets the new app (Launch)
-                if ("launched".equals(r.cond)) {
-                    for (Routine.AppInfo app : r.apps) {
-                        if (app.pkg.equals(newPkg)) {
-                            NotificationHelper.showNotification(this, r);
-                            break;
-                        }
-                    }
-                }
-
-                // Check if routine targets the old app (Exit)
-                if ("exiting".equals(r.cond)) {
-                    for (Routine.AppInfo app : r.apps) {
-                        if (app.pkg.equals(oldPkg)) {
-                            NotificationHelper.showNotification(this, r);
-                            break;
-                        }
-                    }
-                }
-
-                // Check for time-based (used)
-                if ("used".equals(r.cond)) {
-                    for (Routine.AppInfo app : r.apps) {
-                        if (app.pkg.equals(newPkg)) {
-                            if ("session".equals(r.timeMode)) {
-                                scheduleUsageCheck(r);
-                            } else if ("total".equals(r.timeMode)) {
-                                checkTotalUsage(r, newPkg);
-                            }
-                            break;
-                        }
-                    }
-                }
+            Intent home = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
+            for (ResolveInfo info : getPackageManager().queryIntentActivities(home, 0)) {
+                if (info.activityInfo != null) pkgs.add(info.activityInfo.packageName);
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error in handleAppChange: " + e.getMessage());
+            Log.e(TAG, "Error listing launchers: " + e.getMessage());
         }
+        return pkgs;
     }
 
-    private void scheduleUsageCheck(Routine r) {
-        try {
-            long delayMillis = r.dur * 60 * 1000L;
-            if ("h".equals(r.unit)) delayMillis *= 60;
-            if ("s".equals(r.unit)) delayMillis = r.dur * 1000L;
-
-            usageHandler.postDelayed(() -> {
-                try {
-                    NotificationHelper.showNotification(this, r);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error showing scheduled notification: " + e.getMessage());
-                }
-            }, delayMillis);
-        } catch (Exception e) {
-            Log.e(TAG, "Error scheduling usage check: " + e.getMessage());
+    @Override
+    public void onDestroy() {
+        if (core != null) {
+            core.stop();
+            core = null;
+            // Accessibility was switched off; keep cues going from UsageEvents if allowed
+            UsagePollService.startIfNeeded(this);
         }
+        super.onDestroy();
     }
 
-    private void checkTotalUsage(Routine r, String pkg) {
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
         try {
-            UsageStatsManager usm = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
-            Calendar calendar = Calendar.getInstance();
-            calendar.set(Calendar.HOUR_OF_DAY, 0);
-            calendar.set(Calendar.MINUTE, 0);
-            calendar.set(Calendar.SECOND, 0);
-            calendar.set(Calendar.MILLISECOND, 0);
-            long start = calendar.getTimeInMillis();
-            long end = System.currentTimeMillis();
-
-            Map<String, UsageStats> stats = usm.queryAndAggregateUsageStats(start, end);
-            if (stats.containsKey(pkg)) {
-                long totalTimeMs = stats.get(pkg).getTotalTimeInForeground();
-                long thresholdMs = r.dur * 60 * 1000L;
-                if ("h".equals(r.unit)) thresholdMs *= 60;
-                if ("s".equals(r.unit)) thresholdMs = r.dur * 1000L;
-
-                if (totalTimeMs >= thresholdMs) {
-                    NotificationHelper.showNotification(this, r);
-                } else {
-                    // Schedule a check for when the threshold will be reached
-                    long remainingMs = thresholdMs - totalTimeMs;
-                    usageHandler.postDelayed(() -> checkTotalUsage(r, pkg), remainingMs);
-                }
+            EventPipeline p = pipeline;
+            if (p != null && event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+                long uptime = event.getEventTime();
+                lastEventUptime = uptime;
+                p.offer(event.getPackageName(), uptime);
             }
         } catch (Exception e) {
-            Log.e(TAG, "Error checking total usage: " + e.getMessage());
+            Log.e(TAG, "Error in onAccessibilityEvent: " + e.getMessage());
         }
     }
 
@@ -11,6 +11,12 @@ public class BootReceiver extends BroadcastReceiver {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             Log.d("BootReceiver", "Boot completed. CueAside is ready.");
             // Accessibility services are started by the system if they were enabled.
+            // Deadlines saved before the reboot belonged to sessions it ended.
+            PendingTimers.getInstance(context).onBoot();
+            UsagePollService.startIfNeeded(context);
+        } else if (PendingTimers.ACTION_ALARM.equals(intent.getAction())) {
+            // The process was gone; a fresh core restores the saved deadlines and re-arms what is still due
+            if (!TrackerCore.onTimerAlarm()) UsagePollService.startIfNeeded(context);
         }
     }
 }
@@ -0,0 +1,156 @@
+package foz.cueaside.aa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Running foreground time for shared budgets: "used" routines whose limit covers all of
+ * their apps together over a day or a week. A transition credits the budgets of the app
+ * leaving the front and starts those of the app arriving, so reading a budget is a
+ * lookup and an add however many apps its group holds. Worker thread only.
+ */
+class BudgetLedger {
+    static final String WEEK = "week";
+
+    // Foreground time a group already had in the window, for a budget seen for the first time
+    interface Seed {
+        long usedSince(String[] pkgs, long windowStart, long now);
+    }
+
+    private static final class Budget {
+        final String[] pkgs;
+        final boolean weekly;
+        long windowStart;
+        long windowEnd;
+        long used;
+        long since = -1; // start of the open stretch while one of its apps is in front
+
+        Budget(String[] pkgs, boolean weekly) {
+            this.pkgs = pkgs;
+            this.weekly = weekly;
+        }
+    }
+
+    private static final Budget[] NONE = new Budget[0];
+
+    private final Seed seed;
+    private final Calendar calendar = Calendar.getInstance();
+    private TriggerIndex index;
+    private Map<String, Budget> byRoutine = new HashMap<>();
+    private Map<String, Budget[]> byPackage = new HashMap<>();
+    private Budget[] running = NONE;
+
+    BudgetLedger(Seed seed) {
+        this.seed = seed;
+    }
+
+    // Closes the open stretch for the app leaving the front and opens one for the app arriving
+    void onTransition(TriggerIndex index, String pkg, long time) {
+        if (index != this.index) sync(index, time);
+        onForeground(pkg, time);
+    }
+
+    // Also called with null while the screen is off, and with the same app when it comes back on
+    void onForeground(String pkg, long time) {
+        for (Budget b : running) {
+            stop(b, time);
+        }
+        Budget[] next = pkg != null ? byPackage.get(pkg) : null;
+        running = next != null ? next : NONE;
+        for (Budget b : running) {
+            start(b, time);
+        }
+    }
+
+    // Foreground time the routine's group has had in the current window, 0 for an unknown routine
+    long used(String routineId, long now) {
+        Budget b = byRoutine.get(routineId);
+        if (b == null) return 0;
+        roll(b, now);
+        return b.used + (b.since >= 0 ? Math.max(0, now - b.since) : 0);
+    }
+
+    // Keeps the counters of budgets whose group and window are unchanged; new ones are seeded
+    private void sync(TriggerIndex index, long now) {
+        this.index = index;
+        for (Budget b : running) {
+            stop(b, now);
+        }
+        Map<String, Budget> routines = new HashMap<>();
+        Map<String, List<Budget>> packages = new HashMap<>();
+        for (TriggerIndex.Trigger t : index.budgets()) {
+            String[] pkgs = packagesOf(t.routine);
+            boolean weekly = WEEK.equals(t.routine.period);
+            Budget b = byRoutine.get(t.routine.id);
+            if (b == null || b.weekly != weekly || !Arrays.equals(b.pkgs, pkgs)) {
+                b = new Budget(pkgs, weekly);
+                setWindow(b, now);
+                b.used = seed.usedSince(pkgs, b.windowStart, now);
+            }
+            routines.put(t.routine.id, b);
+            for (String pkg : pkgs) {
+                List<Budget> list = packages.get(pkg);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    packages.put(pkg, list);
+                }
+                list.add(b);
+            }
+        }
+        byRoutine = routines;
+        byPackage = new HashMap<>();
+        for (Map.Entry<String, List<Budget>> e : packages.entrySet()) {
+            byPackage.put(e.getKey(), e.getValue().toArray(NONE));
+        }
+        running = NONE;
+    }
+
+    private void start(Budget b, long time) {
+        roll(b, time);
+        b.since = time;
+    }
+
+    private void stop(Budget b, long time) {
+        roll(b, time);
+        if (b.since < 0) return;
+        b.used += Math.max(0, time - b.since);
+        b.since = -1;
+    }
+
+    // A new window starts from zero; an open stretch carries over from the window's start
+    private void roll(Budget b, long now) {
+        if (now < b.windowEnd) return;
+        setWindow(b, now);
+        b.used = 0;
+        if (b.since >= 0 && b.since < b.windowStart) b.since = b.windowStart;
+    }
+
+    private void setWindow(Budget b, long now) {
+        long start = UsageAccumulator.startOfDay(now);
+        calendar.setTimeInMillis(start);
+        if (b.weekly) {
+            int back = (calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7;
+            calendar.add(Calendar.DAY_OF_YEAR, -back);
+            start = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_YEAR, 7);
+        } else {
+            calendar.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        b.windowStart = start;
+        b.windowEnd = calendar.getTimeInMillis();
+    }
+
+    // Sorted and without repeats, so an edit that only reorders the apps keeps the counter
+    private static String[] packagesOf(Routine r) {
+        TreeSet<String> pkgs = new TreeSet<>();
+        for (Routine.AppInfo a : r.apps) {
+            if (a != null && a.pkg != null) pkgs.add(a.pkg);
+        }
+        return pkgs.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,114 @@
+package foz.cueaside.aa;
+
+import java.util.List;
+
+/**
+ * Compiles a routine's {@link Routine.Constraint}s into {@link RuleEngine.Condition}s.
+ * Adding a condition means adding a type here; nothing else changes.
+ */
+final class Conditions {
+    private Conditions() {
+    }
+
+    static final RuleEngine.Condition[] NONE = new RuleEngine.Condition[0];
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    // Null when any constraint is unknown or malformed; such a routine never fires
+    static RuleEngine.Condition[] compile(List<Routine.Constraint> constraints) {
+        if (constraints == null || constraints.isEmpty()) return NONE;
+        RuleEngine.Condition[] compiled = new RuleEngine.Condition[constraints.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(constraints.get(i));
+            if (compiled[i] == null) return null;
+        }
+        return compiled;
+    }
+
+    static RuleEngine.Condition compile(Routine.Constraint c) {
+        if (c == null || c.type == null) return null;
+        switch (c.type) {
+            case "time":
+                // An empty window could never hold, so from == to is rejected rather than read as all day
+                if (c.from < 0 || c.from >= MINUTES_PER_DAY || c.to < 0 || c.to > MINUTES_PER_DAY || c.from == c.to) {
+                    return null;
+                }
+                return new TimeOfDay(c.from, c.to);
+            case "days":
+                return new DaysOfWeek(c.days);
+            case "launches":
+                // Only the last LAUNCH_HISTORY launches are kept, so a higher count could never be reached
+                return c.count > 0 && c.count <= RuleEngine.LAUNCH_HISTORY ? new LaunchCount(c.count) : null;
+            case "groupUsage":
+                if (c.pkgs == null || c.pkgs.isEmpty()) return null;
+                return new GroupUsage(c.pkgs.toArray(new String[0]), c.dur * TriggerIndex.Unit.parse(c.unit).millis);
+            default:
+                return null;
+        }
+    }
+
+    // Minutes of the local day, [from, to); a window past midnight has from > to
+    static final class TimeOfDay implements RuleEngine.Condition {
+        final int from;
+        final int to;
+
+        TimeOfDay(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean test(RuleEngine.Event e) {
+            int m = e.minuteOfDay;
+            return from <= to ? m >= from && m < to : m >= from || m < to;
+        }
+    }
+
+    // Bit (Calendar.DAY_OF_WEEK - 1), so Sunday is bit 0
+    static final class DaysOfWeek implements RuleEngine.Condition {
+        final int mask;
+
+        DaysOfWeek(int mask) {
+            this.mask = mask;
+        }
+
+        @Override
+        public boolean test(RuleEngine.Event e) {
+            return (mask & (1 << (e.dayOfWeek - 1))) != 0;
+        }
+    }
+
+    // The watched app was opened at least this many times in the past hour, this time included
+    static final class LaunchCount implements RuleEngine.Condition {
+        final int count;
+
+        LaunchCount(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public boolean test(RuleEngine.Event e) {
+            return e.launchesWithin(e.pkg, RuleEngine.LAUNCH_WINDOW_MS) >= count;
+        }
+    }
+
+    // Today's combined foreground time across the group has reached the limit
+    static final class GroupUsage implements RuleEngine.Condition {
+        final String[] pkgs;
+        final long limitMs;
+
+        GroupUsage(String[] pkgs, long limitMs) {
+            this.pkgs = pkgs;
+            this.limitMs = limitMs;
+        }
+
+        @Override
+        public boolean test(RuleEngine.Event e) {
+            long total = 0;
+            for (String pkg : pkgs) {
+                total += e.todayTotal(pkg);
+                if (total >= limitMs) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,67 +1,370 @@
 package foz.cueaside.aa;
 
+import android.app.Activity;
 import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Process;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.provider.Settings;
-import android.util.Base64;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
 import com.google.gson.Gson;
-import java.io.ByteArrayOutputStream;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CueBridge implements AppIndex.OnAppsChangedListener, RoutineManager.OnRoutineDeltaListener {
+    private static final int ICON_BATCH = 24;
+    private static final String ICON_REF_PREFIX = "routine:";
+    static final int REQUEST_EXPORT = 201;
+    static final int REQUEST_IMPORT = 202;
+    private static final ThreadPoolExecutor ICON_EXECUTOR = new ThreadPoolExecutor(
+            3, 3, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    // One thread, so batches run in the order the page sent them
+    private static final ThreadPoolExecutor RPC_EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    // Waits on rendered icons and batches them to the page, so the app index thread never does
+    private static final ThreadPoolExecutor STREAM_EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        ICON_EXECUTOR.allowCoreThreadTimeOut(true);
+        RPC_EXECUTOR.allowCoreThreadTimeOut(true);
+        STREAM_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
-public class CueBridge {
     private Context context;
     private RoutineManager routineManager;
     private WebView webView;
     private Gson gson;
+    private final AppIconCache iconCache;
+    private final AppIndex appIndex;
+    private final AtomicInteger scanGeneration = new AtomicInteger();
+    // The page gives up on the preload after this and falls back to separate calls
+    private static final long BOOTSTRAP_WAIT_MS = 3000;
+    private Future<Bootstrap> bootstrap;
+    // Set only once the page has been handed a payload holding the app list
+    private volatile boolean appsBootstrapped;
+    private volatile boolean bootstrapped;
+    private volatile long startup;
+    private volatile String exportVersion;
+
+    private static final class Bootstrap {
+        final String json;
+        final boolean withApps;
+
+        Bootstrap(String json, boolean withApps) {
+            this.json = json;
+            this.withApps = withApps;
+        }
+    }
 
-    public CueBridge(Context context, WebView webView) {
+    public CueBridge(Context context) {
         this.context = context;
-        this.webView = webView;
-        this.routineManager = new RoutineManager(context);
+        this.routineManager = RoutineManager.getInstance(context);
         this.gson = new Gson();
+        this.iconCache = new AppIconCache(context);
+        this.appIndex = AppIndex.getInstance(context);
+    }
+
+    // Callbacks to the page start once there is a page to call
+    public void attach(WebView webView) {
+        this.webView = webView;
+        appIndex.addOnAppsChangedListener(this);
+        routineManager.addOnRoutineDeltaListener(this);
+    }
+
+    // Reads what the first screen needs while the WebView is still being built
+    public void preload() {
+        bootstrap = RPC_EXECUTOR.submit(this::buildBootstrap);
+    }
+
+    // A Diagnostics.beginAsync(STARTUP) stamp, ended when the page reports itself interactive
+    public void traceStartup(long start) {
+        startup = start;
+    }
+
+    // {snapshot, settings, permissions, apps?} in one string, or null when nothing was preloaded
+    @JavascriptInterface
+    public String getBootstrap() {
+        Future<Bootstrap> pending = bootstrap;
+        if (pending == null) return null;
+        try {
+            Bootstrap payload = pending.get(BOOTSTRAP_WAIT_MS, TimeUnit.MILLISECONDS);
+            bootstrapped = payload != null;
+            appsBootstrapped = payload != null && payload.withApps;
+            return payload != null ? payload.json : null;
+        } catch (Exception e) {
+            // The page loads everything itself now, so the app list must come through onAppsUpdated
+            log("Error waiting for bootstrap: " + e.getMessage());
+            pending.cancel(false);
+            appsBootstrapped = false;
+            return null;
+        } finally {
+            bootstrap = null;
+        }
+    }
+
+    // Called by the page once its first screen is drawn and wired up
+    @JavascriptInterface
+    public void reportInteractive() {
+        long start = startup;
+        if (start == 0) return;
+        startup = 0;
+        long ms = (System.nanoTime() - start) / 1000000;
+        Diagnostics.endAsync(Diagnostics.STARTUP, start);
+        // Shows up as "Fully drawn" in the activity manager's launch timing
+        if (context instanceof Activity) ((Activity) context).reportFullyDrawn();
+        log("Interactive after " + ms + " ms" + (bootstrapped ? " with bootstrap" : " without bootstrap"));
+    }
+
+    private Bootstrap buildBootstrap() {
+        long start = Diagnostics.begin(Diagnostics.BOOTSTRAP);
+        StringWriter sw = new StringWriter();
+        boolean withApps;
+        try {
+            JsonWriter out = new JsonWriter(sw);
+            out.beginObject();
+            out.name("snapshot").jsonValue(getRoutineSnapshot());
+            out.name("settings").jsonValue(JsonParser.parseString(getSettings()).toString());
+            out.name("permissions").jsonValue(checkPermissionsStatus());
+            // Only a saved index; a first full scan still arrives through onAppsUpdated
+            List<Routine.AppInfo> apps = appIndex.getCachedAppsNow();
+            withApps = apps != null;
+            if (withApps) out.name("apps").jsonValue(gson.toJson(apps));
+            out.endObject();
+        } catch (Exception e) {
+            log("Error building bootstrap: " + e.getMessage());
+            return null;
+        } finally {
+            Diagnostics.end(Diagnostics.BOOTSTRAP, start);
+        }
+        return new Bootstrap(sw.toString(), withApps);
+    }
+
+    // [{id, method, args}, ...] from the page; runs off the bridge thread and answers the
+    // whole batch with one window.onBridgeResults([{id, result | error}, ...]) call
+    @JavascriptInterface
+    public void call(String batchJson) {
+        RPC_EXECUTOR.execute(() -> {
+            String results = runBatch(batchJson);
+            webView.post(() -> {
+                webView.evaluateJavascript(String.format("window.onBridgeResults(%s)", gson.toJson(results)), null);
+            });
+        });
+    }
+
+    private String runBatch(String batchJson) {
+        StringWriter sw = new StringWriter();
+        try {
+            JsonArray requests = JsonParser.parseString(batchJson).getAsJsonArray();
+            JsonWriter out = new JsonWriter(sw);
+            RoutineManager.Batch edits = new RoutineManager.Batch();
+            out.beginArray();
+            for (JsonElement e : requests) {
+                JsonObject request;
+                long id;
+                try {
+                    request = e.getAsJsonObject();
+                    id = request.get("id").getAsLong();
+                } catch (RuntimeException ex) {
+                    // Nothing to answer it by; the page fails whatever the batch left unanswered
+                    log("Error reading bridge request: " + ex.getMessage());
+                    continue;
+                }
+                out.beginObject();
+                out.name("id").value(id);
+                String method = "request";
+                try {
+                    JsonArray args = request.has("args") ? request.getAsJsonArray("args") : new JsonArray();
+                    method = request.get("method").getAsString();
+                    String result;
+                    if (record(edits, method, args)) {
+                        result = null;
+                    } else {
+                        // Reads see every edit queued ahead of them
+                        flush(edits);
+                        edits = new RoutineManager.Batch();
+                        result = dispatch(method, args);
+                    }
+                    out.name("result");
+                    if (result != null) {
+                        out.jsonValue(result);
+                    } else {
+                        out.nullValue();
+                    }
+                } catch (Exception ex) {
+                    out.name("error").value(method + ": " + ex.getMessage());
+                }
+                out.endObject();
+            }
+            out.endArray();
+            flush(edits);
+        } catch (Exception e) {
+            // The page fails every call of the batch that this leaves unanswered
+            log("Error running bridge batch: " + e.getMessage());
+            return "[]";
+        }
+        return sw.toString();
     }
 
+    // Routine edits are collected so a batch costs one write and one delta
+    private boolean record(RoutineManager.Batch edits, String method, JsonArray args) throws IOException {
+        switch (method) {
+            case "saveRoutine":
+                edits.add(RoutineCodec.decode(args.get(0).getAsString()));
+                return true;
+            case "deleteRoutine":
+                edits.delete(args.get(0).getAsString());
+                return true;
+            case "toggleRoutine":
+                edits.toggle(args.get(0).getAsString(), args.get(1).getAsBoolean());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void flush(RoutineManager.Batch edits) {
+        if (edits.isEmpty()) return;
+        routineManager.apply(edits);
+        UsagePollService.startIfNeeded(context);
+    }
+
+    // Every result is JSON text, or null for methods that return nothing
+    private String dispatch(String method, JsonArray args) {
+        switch (method) {
+            case "getRoutines":
+                return getRoutines();
+            case "getRoutineSnapshot":
+                return getRoutineSnapshot();
+            case "getIcons":
+                return getIcons(args.get(0).getAsString());
+            case "getApps":
+                return getApps();
+            case "getSettings":
+                return getSettings();
+            case "saveSettings":
+                saveSettings(args.get(0).getAsString());
+                return null;
+            case "getUsageStats":
+                return getUsageStats(args.get(0).getAsString(), args.get(1).getAsLong(), args.get(2).getAsLong());
+            case "getDiagnostics":
+                return getDiagnostics(args.size() > 0 && args.get(0).getAsBoolean());
+            case "checkPermissionsStatus":
+                return checkPermissionsStatus();
+            default:
+                throw new IllegalArgumentException("unknown method");
+        }
+    }
+
+    // Full routines including inline icons; the page itself uses getRoutineSnapshot()
     @JavascriptInterface
     public String getRoutines() {
-        return gson.toJson(routineManager.getRoutines());
+        try {
+            List<Routine> routines = new ArrayList<>();
+            for (Routine r : routineManager.getRoutines()) {
+                routines.add(routineManager.withInlineIcons(r));
+            }
+            return RoutineCodec.encodeList(routines);
+        } catch (IOException e) {
+            log("Error encoding routines: " + e.getMessage());
+            return "[]";
+        }
+    }
+
+    @JavascriptInterface
+    public String getRoutineSnapshot() {
+        RoutineManager.Snapshot snapshot = routineManager.getSnapshot();
+        StringWriter sw = new StringWriter();
+        try {
+            JsonWriter out = new JsonWriter(sw);
+            out.beginObject();
+            out.name("rev").value(snapshot.revision);
+            out.name("routines");
+            RoutineCodec.writeList(out, snapshot.routines, ICON_REF_PREFIX);
+            out.endObject();
+        } catch (IOException e) {
+            log("Error encoding routines: " + e.getMessage());
+            return "{\"rev\":0,\"routines\":[]}";
+        }
+        return sw.toString();
+    }
+
+    // Resolves the icon refs left in routine payloads, as a ref -> data URI map
+    @JavascriptInterface
+    public String getIcons(String refsJson) {
+        String[] refs = gson.fromJson(refsJson, String[].class);
+        Map<String, String> icons = new HashMap<>();
+        if (refs == null) return "{}";
+        Map<String, Routine> byId = new HashMap<>();
+        for (Routine r : routineManager.getRoutines()) {
+            byId.put(r.id, r);
+        }
+        for (String ref : refs) {
+            String src = resolveIconRef(byId, ref);
+            if (src != null) icons.put(ref, src);
+        }
+        return gson.toJson(icons);
     }
 
     @JavascriptInterface
     public void saveRoutine(String json) {
-        Routine r = gson.fromJson(json, Routine.class);
-        routineManager.addRoutine(r);
-        refreshRoutines();
+        try {
+            routineManager.addRoutine(RoutineCodec.decode(json));
+            UsagePollService.startIfNeeded(context);
+        } catch (IOException e) {
+            log("Error parsing routine: " + e.getMessage());
+        }
     }
 
     @JavascriptInterface
     public void deleteRoutine(String id) {
         routineManager.deleteRoutine(id);
-        refreshRoutines();
     }
 
     @JavascriptInterface
     public void toggleRoutine(String id, boolean enabled) {
         routineManager.toggleRoutine(id, enabled);
-        refreshRoutines();
+        if (enabled) UsagePollService.startIfNeeded(context);
     }
 
     @JavascriptInterface
     public void clearAllData() {
         routineManager.saveRoutines(new ArrayList<>());
         routineManager.saveSettings("{}");
-        refreshRoutines();
     }
 
     @JavascriptInterface
@@ -76,45 +379,64 @@ public class CueBridge {
 
     @JavascriptInterface
     public String getApps() {
-        List<Routine.AppInfo> appInfos = new ArrayList<>();
-        try {
-            PackageManager pm = context.getPackageManager();
-            List<ApplicationInfo> apps = pm.getInstalledApplications(PackageManager.GET_META_DATA);
+        return gson.toJson(appIndex.getAppsNow());
+    }
 
-            for (ApplicationInfo app : apps) {
-                try {
-                    // Filter system apps but keep system apps that have been updated
-                    if ((app.flags & ApplicationInfo.FLAG_SYSTEM) != 0 && (app.flags & ApplicationInfo.FLAG_UPDATED_SYSTEM_APP) == 0) {
-                        continue;
-                    }
-                    Routine.AppInfo info = new Routine.AppInfo();
-                    info.name = pm.getApplicationLabel(app).toString();
-                    info.pkg = app.packageName;
-                    info.icon = getBase64Icon(pm.getApplicationIcon(app));
-                    appInfos.add(info);
-                } catch (Exception e) {
-                    log("Error processing app " + app.packageName + ": " + e.getMessage());
-                }
-            }
-        } catch (Exception e) {
-            log("Error getting apps: " + e.getMessage());
+    // Foreground time and launches of one app from the on-device journal
+    @JavascriptInterface
+    public String getUsageStats(String pkg, long from, long to) {
+        UsageJournal journal = UsageJournal.getInstance(context);
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pkg", pkg);
+        stats.put("foregroundMs", journal.foregroundTime(pkg, from, to));
+        stats.put("launchesToday", journal.launchCountToday(pkg, now));
+        stats.put("firedToday", journal.firedCountToday(pkg, now));
+        return gson.toJson(stats);
+    }
+
+    // Counters and latencies for a diagnostics screen; optionally kept in a rotating log file
+    @JavascriptInterface
+    public String getDiagnostics(boolean persist) {
+        StringWriter sw = new StringWriter();
+        try {
+            JsonWriter out = new JsonWriter(sw);
+            out.beginObject();
+            out.name("time").value(System.currentTimeMillis());
+            out.name("lastAccEvent").value(AppTrackerService.getLastEventTime());
+            out.name("eventQueueDepth").value(AppTrackerService.getEventQueueDepth());
+            out.name("droppedEvents").value(AppTrackerService.getDroppedEventCount());
+            out.name("collapsedEvents").value(AppTrackerService.getCollapsedEventCount());
+            out.name("tracker").value(TrackerCore.getActiveBackend());
+            out.name("pendingTimers").value(TrackerCore.getPendingTimerCount());
+            out.name("suppressedNotifications").value(NotificationHelper.getSuppressedCount());
+            Diagnostics.write(out);
+            out.endObject();
+        } catch (IOException e) {
+            log("Error encoding diagnostics: " + e.getMessage());
+            return "{}";
         }
-        return gson.toJson(appInfos);
+        String json = sw.toString();
+        if (persist) Diagnostics.append(new File(context.getFilesDir(), "diagnostics"), json);
+        return json;
     }
 
     @JavascriptInterface
     public String checkPermissionsStatus() {
         java.util.Map<String, Object> status = new java.util.HashMap<>();
-        status.put("usage", isUsageStatsEnabled());
-        boolean accEnabled = isAccessibilityEnabled();
+        status.put("usage", isUsageStatsEnabled(context));
+        boolean accEnabled = isAccessibilityEnabled(context);
         status.put("accessibility", accEnabled);
         status.put("notifications", isNotificationPermissionGranted());
         status.put("lastAccEvent", AppTrackerService.getLastEventTime());
+        status.put("eventQueueDepth", AppTrackerService.getEventQueueDepth());
+        status.put("droppedEvents", AppTrackerService.getDroppedEventCount());
+        status.put("tracker", TrackerCore.getActiveBackend());
         status.put("hasActiveRoutines", routineManager.getRoutines().stream().anyMatch(r -> r.enabled));
         return gson.toJson(status);
     }
 
-    private boolean isUsageStatsEnabled() {
+    static boolean isUsageStatsEnabled(Context context) {
         try {
             AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
             int mode = appOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS, Process.myUid(), context.getPackageName());
@@ -124,7 +446,7 @@ public class CueBridge {
         }
     }
 
-    private boolean isAccessibilityEnabled() {
+    static boolean isAccessibilityEnabled(Context context) {
         try {
             int accessibilityEnabled = Settings.Secure.getInt(context.getContentResolver(), Settings.Secure.ACCESSIBILITY_ENABLED);
             if (accessibilityEnabled == 1) {
@@ -138,7 +460,7 @@ public class CueBridge {
                 }
             }
         } catch (Exception e) {
-            log("Error checking accessibility: " + e.getMessage());
+            android.util.Log.d("CueAsideBridge", "Error checking accessibility: " + e.getMessage());
         }
         return false;
     }
@@ -202,7 +524,7 @@ public class CueBridge {
 
     @JavascriptInterface
     public void rescanApps() {
-        refreshApps();
+        appIndex.rebuild(this::pushApps);
     }
 
     @JavascriptInterface
@@ -210,6 +532,99 @@ public class CueBridge {
         android.util.Log.d("CueAsideBridge", message);
     }
 
+    // Asks where to save a backup; the outcome arrives through window.onRoutineTransfer
+    @JavascriptInterface
+    public void exportRoutines(String version) {
+        exportVersion = version;
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                .addCategory(Intent.CATEGORY_OPENABLE)
+                .setType("application/json")
+                .putExtra(Intent.EXTRA_TITLE, "cue-aside-export.json");
+        startForResult(intent, REQUEST_EXPORT);
+    }
+
+    // Asks for a backup to restore; the outcome arrives through window.onRoutineTransfer
+    @JavascriptInterface
+    public void importRoutines() {
+        // Providers label .json files inconsistently, so don't filter on it
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                .addCategory(Intent.CATEGORY_OPENABLE)
+                .setType("*/*");
+        startForResult(intent, REQUEST_IMPORT);
+    }
+
+    private void startForResult(Intent intent, int requestCode) {
+        if (!(context instanceof Activity)) return;
+        webView.post(() -> {
+            try {
+                ((Activity) context).startActivityForResult(intent, requestCode);
+            } catch (Exception e) {
+                log("Error opening document picker: " + e.getMessage());
+                postTransfer("{\"error\":\"No file picker available\"}");
+            }
+        });
+    }
+
+    // Forwarded from the activity; a cancelled pick does nothing
+    public void onDocumentResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_EXPORT && requestCode != REQUEST_IMPORT) return;
+        Uri uri = resultCode == Activity.RESULT_OK && data != null ? data.getData() : null;
+        if (uri == null) return;
+        RPC_EXECUTOR.execute(() -> postTransfer(requestCode == REQUEST_EXPORT ? writeExport(uri) : readImport(uri)));
+    }
+
+    // Same shape the page used to build itself: {v, exported, routines, settings}
+    private String writeExport(Uri uri) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("op", "export");
+        try (OutputStream stream = context.getContentResolver().openOutputStream(uri, "wt")) {
+            if (stream == null) throw new IOException("Cannot open " + uri);
+            JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+            out.setIndent("  ");
+            SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+            out.beginObject();
+            out.name("v").value(exportVersion);
+            out.name("exported").value(iso.format(new Date()));
+            out.name("routines");
+            result.put("count", routineManager.exportRoutines(out));
+            out.name("settings").jsonValue(JsonParser.parseString(getSettings()).toString());
+            out.endObject();
+            out.flush();
+        } catch (Exception e) {
+            log("Error exporting routines: " + e.getMessage());
+            result.put("error", e.getMessage());
+        }
+        return gson.toJson(result);
+    }
+
+    private String readImport(Uri uri) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("op", "import");
+        try (InputStream stream = context.getContentResolver().openInputStream(uri)) {
+            if (stream == null) throw new IOException("Cannot open " + uri);
+            JsonReader in = new JsonReader(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)));
+            in.setLenient(true);
+            RoutineManager.ImportResult imported = routineManager.importRoutines(in);
+            result.put("added", imported.added);
+            result.put("replaced", imported.replaced);
+            result.put("skipped", imported.skipped);
+            result.put("maxSeqId", imported.maxSeqId);
+            result.put("problems", imported.problems);
+            if (imported.added + imported.replaced > 0) UsagePollService.startIfNeeded(context);
+        } catch (Exception e) {
+            log("Error importing routines: " + e.getMessage());
+            result.put("error", e.getMessage());
+        }
+        return gson.toJson(result);
+    }
+
+    private void postTransfer(String json) {
+        webView.post(() -> {
+            webView.evaluateJavascript(String.format("window.onRoutineTransfer(%s)", gson.toJson(json)), null);
+        });
+    }
+
     @JavascriptInterface
     public void openAppInfo() {
         try {
@@ -221,35 +636,145 @@ public class CueBridge {
         }
     }
 
-    private void refreshRoutines() {
+    // Only what changed goes to the page; it resyncs itself if a revision was missed
+    @Override
+    public void onRoutineDelta(RoutineManager.Delta delta) {
+        StringWriter sw = new StringWriter();
+        try {
+            JsonWriter out = new JsonWriter(sw);
+            out.beginObject();
+            out.name("base").value(delta.base);
+            out.name("rev").value(delta.revision);
+            out.name("upserted");
+            RoutineCodec.writeList(out, delta.upserted, ICON_REF_PREFIX);
+            out.name("deleted").beginArray();
+            for (String id : delta.deleted) {
+                out.value(id);
+            }
+            out.endArray();
+            if (delta.order != null) {
+                out.name("order").beginArray();
+                for (String id : delta.order) {
+                    out.value(id);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        } catch (IOException e) {
+            log("Error encoding routine delta: " + e.getMessage());
+            return;
+        }
+        String payload = sw.toString();
         webView.post(() -> {
-            String json = getRoutines();
-            webView.evaluateJavascript(String.format("window.onRoutinesUpdated(%s)", gson.toJson(json)), null);
+            webView.evaluateJavascript(String.format("window.onRoutinesDelta(%s)", gson.toJson(payload)), null);
         });
     }
 
+    private String resolveIconRef(Map<String, Routine> byId, String ref) {
+        if (IconStore.isRef(ref)) return routineManager.resolveIcon(ref);
+        if (ref == null || !ref.startsWith(ICON_REF_PREFIX)) return null;
+        int split = ref.lastIndexOf(':');
+        if (split <= ICON_REF_PREFIX.length()) return null;
+        Routine r = byId.get(ref.substring(ICON_REF_PREFIX.length(), split));
+        if (r == null) return null;
+        String slot = ref.substring(split + 1);
+        if (slot.equals("icon")) return r.icon != null ? r.icon.src : null;
+        try {
+            int i = Integer.parseInt(slot);
+            return r.apps != null && i >= 0 && i < r.apps.size() ? r.apps.get(i).icon : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public void refreshApps() {
-        new Thread(() -> {
-            String json = getApps();
-            webView.post(() -> {
-                webView.evaluateJavascript(String.format("window.onAppsUpdated(%s)", gson.toJson(json)), null);
+        appIndex.getApps(apps -> {
+            // The page already has the list from the bootstrap; only the icons are missing
+            if (appsBootstrapped) {
+                appsBootstrapped = false;
+                streamIcons(scanGeneration.incrementAndGet(), apps, true);
+            } else {
+                pushApps(apps);
+            }
+        });
+    }
+
+    public void release() {
+        appIndex.removeOnAppsChangedListener(this);
+        routineManager.removeOnRoutineDeltaListener(this);
+    }
+
+    private void pushApps(List<Routine.AppInfo> apps) {
+        final int generation = scanGeneration.incrementAndGet();
+        String json = gson.toJson(apps);
+        webView.post(() -> {
+            webView.evaluateJavascript(String.format("window.onAppsUpdated(%s)", gson.toJson(json)), null);
+        });
+        streamIcons(generation, apps, true);
+    }
+
+    // Installs, updates and removals reach the page as a delta instead of a full list
+    @Override
+    public void onAppsChanged(List<Routine.AppInfo> upserted, List<String> removed) {
+        Map<String, Object> delta = new HashMap<>();
+        delta.put("upserted", upserted);
+        delta.put("removed", removed);
+        String json = gson.toJson(delta);
+        webView.post(() -> {
+            webView.evaluateJavascript(String.format("window.onAppsUpdated(%s)", gson.toJson(json)), null);
+        });
+        streamIcons(scanGeneration.get(), upserted, false);
+    }
+
+    // Renders or loads icons in parallel and pushes them to the page in small batches. Called
+    // from AppIndex callbacks, which only hand the list over; the waiting happens elsewhere.
+    private void streamIcons(int generation, List<Routine.AppInfo> appInfos, boolean complete) {
+        STREAM_EXECUTOR.execute(() -> collectIcons(generation, appInfos, complete));
+    }
+
+    private void collectIcons(int generation, List<Routine.AppInfo> appInfos, boolean complete) {
+        PackageManager pm = context.getPackageManager();
+        CompletionService<String[]> completion = new ExecutorCompletionService<>(ICON_EXECUTOR);
+        for (Routine.AppInfo info : appInfos) {
+            completion.submit(() -> {
+                if (generation != scanGeneration.get()) return null;
+                try {
+                    return new String[]{info.iconKey, iconCache.loadDataUri(pm, info.pkg, info.iconKey)};
+                } catch (Exception e) {
+                    log("Error loading icon for " + info.pkg + ": " + e.getMessage());
+                    return null;
+                }
             });
-        }).start();
-    }
-
-    private String getBase64Icon(Drawable drawable) {
-        Bitmap bitmap;
-        if (drawable instanceof BitmapDrawable) {
-            bitmap = ((BitmapDrawable) drawable).getBitmap();
-        } else {
-            bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
-        }
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        byte[] byteArray = stream.toByteArray();
-        return "data:image/png;base64," + Base64.encodeToString(byteArray, Base64.NO_WRAP);
+        }
+
+        Map<String, String> batch = new HashMap<>();
+        try {
+            for (int i = 0; i < appInfos.size(); i++) {
+                String[] result = completion.take().get();
+                if (result != null) batch.put(result[0], result[1]);
+                if (batch.size() >= ICON_BATCH) {
+                    postIcons(batch);
+                    batch = new HashMap<>();
+                }
+            }
+        } catch (Exception e) {
+            log("Error streaming icons: " + e.getMessage());
+        }
+        if (!batch.isEmpty()) postIcons(batch);
+
+        if (complete && generation == scanGeneration.get()) {
+            Set<String> keys = new HashSet<>();
+            for (Routine.AppInfo info : appInfos) {
+                keys.add(info.iconKey);
+            }
+            iconCache.prune(keys);
+        }
+    }
+
+    private void postIcons(Map<String, String> batch) {
+        String json = gson.toJson(batch);
+        webView.post(() -> {
+            webView.evaluateJavascript(String.format("window.onAppIcons(%s)", gson.toJson(json)), null);
+        });
     }
 }
@@ -0,0 +1,214 @@
+package foz.cueaside.aa;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Deadline queue for usage checks. Timers are keyed by routine id and package so a
+ * switch away from one app cancels only that app's timers, and deadlines are rounded
+ * up to a one second tick so timers due together fire on a single wakeup.
+ */
+class CueScheduler {
+    private static final String TAG = "CueScheduler";
+    static final long TICK_MS = 1000L;
+
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    // Asks the owner to call runDue() at (or shortly after) the given clock time
+    interface Waker {
+        void wakeAt(long uptimeMillis);
+        void cancel();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final String routineId;
+        final String pkg;
+        final long due;
+        final long seq;
+        final Runnable task;
+        boolean cancelled;
+
+        Entry(String routineId, String pkg, long due, long seq, Runnable task) {
+            this.routineId = routineId;
+            this.pkg = pkg;
+            this.due = due;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (due != o.due) return due < o.due ? -1 : 1;
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    private final Clock clock;
+    private final Waker waker;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private final Map<String, Map<String, Entry>> byPackage = new HashMap<>();
+    private long seq;
+    private long wakeAt = Long.MAX_VALUE;
+    private int live;
+    private int stale;
+
+    CueScheduler(Clock clock, Waker waker) {
+        this.clock = clock;
+        this.waker = waker;
+    }
+
+    // Timers run on the given looper's thread
+    static CueScheduler create(Looper looper) {
+        Handler handler = new Handler(looper);
+        CueScheduler[] holder = new CueScheduler[1];
+        Runnable fire = () -> holder[0].runDue();
+        holder[0] = new CueScheduler(SystemClock::uptimeMillis, new Waker() {
+            @Override
+            public void wakeAt(long uptimeMillis) {
+                handler.removeCallbacks(fire);
+                handler.postAtTime(fire, uptimeMillis);
+            }
+
+            @Override
+            public void cancel() {
+                handler.removeCallbacks(fire);
+            }
+        });
+        return holder[0];
+    }
+
+    synchronized void clear() {
+        queue.clear();
+        byPackage.clear();
+        live = 0;
+        stale = 0;
+        wakeAt = Long.MAX_VALUE;
+        waker.cancel();
+    }
+
+    // Replaces any pending task for the same routine and package
+    synchronized void schedule(String routineId, String pkg, long delayMs, Runnable task) {
+        long at = clock.uptimeMillis() + Math.max(0, delayMs);
+        long due = ((at + TICK_MS - 1) / TICK_MS) * TICK_MS;
+
+        Map<String, Entry> forPkg = byPackage.get(pkg);
+        if (forPkg == null) {
+            forPkg = new HashMap<>();
+            byPackage.put(pkg, forPkg);
+        }
+        Entry previous = forPkg.get(routineId);
+        if (previous != null) {
+            previous.cancelled = true;
+            live--;
+            stale++;
+        }
+        Entry entry = new Entry(routineId, pkg, due, seq++, task);
+        forPkg.put(routineId, entry);
+        queue.add(entry);
+        live++;
+        rearm();
+    }
+
+    synchronized void cancel(String routineId, String pkg) {
+        Map<String, Entry> forPkg = byPackage.get(pkg);
+        if (forPkg == null) return;
+        Entry e = forPkg.remove(routineId);
+        if (e != null) {
+            e.cancelled = true;
+            live--;
+            stale++;
+        }
+        if (forPkg.isEmpty()) byPackage.remove(pkg);
+        rearm();
+    }
+
+    synchronized void cancelPackage(String pkg) {
+        Map<String, Entry> forPkg = byPackage.remove(pkg);
+        if (forPkg == null) return;
+        for (Entry e : forPkg.values()) {
+            e.cancelled = true;
+            live--;
+            stale++;
+        }
+        rearm();
+    }
+
+    synchronized int size() {
+        return live;
+    }
+
+    // Cancelled heads are dropped eagerly, so the head is always a live timer
+    synchronized long nextDue() {
+        Entry head = queue.peek();
+        return head != null ? head.due : Long.MAX_VALUE;
+    }
+
+    // Runs every task whose tick has passed; called by the waker, or directly with a fake clock
+    void runDue() {
+        List<Entry> due = new ArrayList<>();
+        synchronized (this) {
+            wakeAt = Long.MAX_VALUE;
+            long now = clock.uptimeMillis();
+            Entry head;
+            while ((head = queue.peek()) != null && (head.cancelled || head.due <= now)) {
+                queue.poll();
+                if (head.cancelled) {
+                    stale--;
+                    continue;
+                }
+                Map<String, Entry> forPkg = byPackage.get(head.pkg);
+                if (forPkg != null && forPkg.get(head.routineId) == head) {
+                    forPkg.remove(head.routineId);
+                    if (forPkg.isEmpty()) byPackage.remove(head.pkg);
+                }
+                live--;
+                due.add(head);
+            }
+            rearm();
+        }
+        for (Entry e : due) {
+            long start = Diagnostics.begin(Diagnostics.TIMER);
+            try {
+                e.task.run();
+            } catch (Exception ex) {
+                Log.e(TAG, "Error running timer for " + e.routineId + ": " + ex.getMessage());
+            } finally {
+                Diagnostics.end(Diagnostics.TIMER, start);
+            }
+        }
+    }
+
+    private void rearm() {
+        // Drop cancelled heads eagerly so they never cause a spurious wakeup, and sweep
+        // the rest once they outnumber live timers so app switching can't grow the heap
+        while (!queue.isEmpty() && queue.peek().cancelled) {
+            queue.poll();
+            stale--;
+        }
+        if (stale > 64 && stale > live) {
+            queue.removeIf(e -> e.cancelled);
+            stale = 0;
+        }
+        Entry head = queue.peek();
+        if (head == null) {
+            if (wakeAt != Long.MAX_VALUE) {
+                wakeAt = Long.MAX_VALUE;
+                waker.cancel();
+            }
+            return;
+        }
+        if (head.due != wakeAt) {
+            wakeAt = head.due;
+            waker.wakeAt(head.due);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package foz.cueaside.aa;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the hot paths, each span also wrapped in a
+ * {@link Trace} section. Recording is a handful of atomic adds into preallocated arrays,
+ * so it can stay on in release builds; the snapshot reports what that costs.
+ */
+final class Diagnostics {
+    private static final String TAG = "Diagnostics";
+
+    static final int EVENT = 0;
+    static final int ROUTINE_LOAD = 1;
+    static final int USAGE_QUERY = 2;
+    static final int TIMER = 3;
+    static final int NOTIFY = 4;
+    static final int ICON_ENCODE = 5;
+    static final int STARTUP = 6;
+    static final int BOOTSTRAP = 7;
+    private static final int CALIBRATE = 8;
+
+    private static final String[] NAMES = {
+            "event", "routineLoad", "usageQuery", "timer", "notify", "iconEncode", "startup", "bootstrap",
+            "calibrate"};
+    private static final String[] SECTIONS = {
+            "CueAside:event", "CueAside:routineLoad", "CueAside:usageQuery", "CueAside:timer",
+            "CueAside:notify", "CueAside:iconEncode", "CueAside:startup", "CueAside:bootstrap",
+            "CueAside:calibrate"};
+    private static final int SPANS = NAMES.length;
+
+    // Bucket b holds durations below 2^b microseconds, so 32 buckets reach past half an hour
+    private static final int BUCKETS = 32;
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MAX = 2;
+
+    private static final AtomicLongArray histograms = new AtomicLongArray(SPANS * BUCKETS);
+    private static final AtomicLongArray stats = new AtomicLongArray(SPANS * 3);
+
+    private static final String LOG_NAME = "diagnostics.log";
+    private static final long LOG_LIMIT = 256 * 1024;
+    private static final int CALIBRATION_ROUNDS = 2000;
+
+    private Diagnostics() {
+    }
+
+    // Pair with end() on the same thread, in a finally block
+    static long begin(int span) {
+        Trace.beginSection(SECTIONS[span]);
+        return System.nanoTime();
+    }
+
+    static void end(int span, long start) {
+        long nanos = System.nanoTime() - start;
+        Trace.endSection();
+        record(span, nanos);
+    }
+
+    // For spans that end on another thread; traced as an async slice where the platform has them
+    static long beginAsync(int span) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.beginAsyncSection(SECTIONS[span], span);
+        return System.nanoTime();
+    }
+
+    static void endAsync(int span, long start) {
+        long nanos = System.nanoTime() - start;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.endAsyncSection(SECTIONS[span], span);
+        record(span, nanos);
+    }
+
+    private static void record(int span, long nanos) {
+        if (nanos < 0) nanos = 0;
+        long micros = nanos >>> 10;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        histograms.incrementAndGet(span * BUCKETS + bucket);
+        stats.incrementAndGet(span * 3 + COUNT);
+        stats.addAndGet(span * 3 + TOTAL, nanos);
+        int maxSlot = span * 3 + MAX;
+        long max;
+        while (nanos > (max = stats.get(maxSlot)) && !stats.compareAndSet(maxSlot, max, nanos)) {
+            // Lost a race with another thread; re-read and retry
+        }
+    }
+
+    static long count(int span) {
+        return stats.get(span * 3 + COUNT);
+    }
+
+    static long meanNanos(int span) {
+        long count = count(span);
+        return count > 0 ? stats.get(span * 3 + TOTAL) / count : 0;
+    }
+
+    // Cost of one begin/end pair on this device, measured into a span that is never reported
+    static long spanCostNanos() {
+        long cost = 0;
+        // The first round only warms up; report the second
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+                end(CALIBRATE, begin(CALIBRATE));
+            }
+            cost = (System.nanoTime() - start) / CALIBRATION_ROUNDS;
+        }
+        return cost;
+    }
+
+    // Writes the "spans" and "overhead" members of an object the caller has opened
+    static void write(JsonWriter out) throws IOException {
+        out.name("spans").beginObject();
+        for (int span = 0; span < CALIBRATE; span++) {
+            long count = count(span);
+            out.name(NAMES[span]).beginObject();
+            out.name("count").value(count);
+            if (count > 0) {
+                out.name("meanNs").value(meanNanos(span));
+                out.name("p50Ns").value(percentile(span, count, 0.5));
+                out.name("p99Ns").value(percentile(span, count, 0.99));
+                out.name("maxNs").value(stats.get(span * 3 + MAX));
+            }
+            out.endObject();
+        }
+        out.endObject();
+
+        long spanCost = spanCostNanos();
+        long eventMean = meanNanos(EVENT);
+        out.name("overhead").beginObject();
+        out.name("spanNs").value(spanCost);
+        out.name("eventMeanNs").value(eventMean);
+        if (eventMean > 0) out.name("eventPct").value(100.0 * spanCost / eventMean);
+        out.endObject();
+    }
+
+    // Upper bound of the bucket holding the given fraction of samples
+    private static long percentile(int span, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms.get(span * BUCKETS + b);
+            if (seen >= rank) return (1L << b) * 1024;
+        }
+        return stats.get(span * 3 + MAX);
+    }
+
+    // One JSON line per snapshot; the file is rolled over to a single ".1" backup when full
+    static void append(File dir, String json) {
+        try {
+            if (!dir.exists() && !dir.mkdirs()) return;
+            File log = new File(dir, LOG_NAME);
+            if (log.length() > LOG_LIMIT) {
+                File backup = new File(dir, LOG_NAME + ".1");
+                if (backup.exists() && !backup.delete()) Log.w(TAG, "Could not delete old diagnostics log");
+                if (!log.renameTo(backup)) Log.w(TAG, "Could not rotate diagnostics log");
+            }
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(log, true), StandardCharsets.UTF_8)) {
+                w.write(json);
+                w.write('\n');
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing diagnostics: " + e.getMessage());
+        }
+    }
+}
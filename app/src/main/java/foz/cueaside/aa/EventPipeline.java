@@ -0,0 +1,134 @@
+package foz.cueaside.aa;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands foreground transitions from the accessibility callback to the worker thread.
+ * The producer side only dedupes, interns and writes into a fixed single-producer
+ * ring; everything else happens when the worker drains it.
+ */
+class EventPipeline {
+    private static final String TAG = "EventPipeline";
+    private static final int CAPACITY = 64;
+    private static final int MASK = CAPACITY - 1;
+    // A transition followed by another one this quickly never really held the foreground
+    private static final long BURST_MS = 150;
+
+    interface Sink {
+        void onTransition(String pkg, long time);
+    }
+
+    private final Handler worker;
+    private final Sink sink;
+    private final String[] pkgs = new String[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean drainPending = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final Runnable drainTask = this::drain;
+
+    // Producer thread only
+    private final Map<String, String> interned = new HashMap<>();
+    private String lastOffered;
+    // Written by the producer even when the ring is full, so the worker can resync after drops
+    private volatile String latest;
+    private volatile long latestTime;
+    private long droppedSeen;
+
+    EventPipeline(Handler worker, Sink sink) {
+        this.worker = worker;
+        this.sink = sink;
+    }
+
+    // Called on the accessibility thread for every window change; must stay cheap
+    void offer(CharSequence pkg, long eventUptime) {
+        if (pkg == null) pkg = "";
+        if (lastOffered != null && lastOffered.contentEquals(pkg)) return;
+
+        String name = intern(pkg);
+        lastOffered = name;
+        latestTime = eventUptime;
+        latest = name;
+
+        long t = tail.get();
+        if (t - head.get() >= CAPACITY) {
+            dropped.incrementAndGet();
+        } else {
+            int i = (int) (t & MASK);
+            pkgs[i] = name;
+            times[i] = eventUptime;
+            tail.lazySet(t + 1);
+        }
+        if (drainPending.compareAndSet(false, true)) {
+            worker.post(drainTask);
+        }
+    }
+
+    int getQueueDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    private String intern(CharSequence pkg) {
+        String key = pkg.toString();
+        String existing = interned.get(key);
+        if (existing != null) return existing;
+        interned.put(key, key);
+        return key;
+    }
+
+    private void drain() {
+        drainPending.set(false);
+        // Event times are uptime based; convert once per batch instead of per record
+        long offset = System.currentTimeMillis() - SystemClock.uptimeMillis();
+        long h = head.get();
+        long t;
+        while (h < (t = tail.get())) {
+            int i = (int) (h & MASK);
+            String pkg = pkgs[i];
+            long time = times[i];
+            pkgs[i] = null;
+            h++;
+            boolean superseded = h < t && times[(int) (h & MASK)] - time < BURST_MS;
+            head.lazySet(h);
+            if (superseded) {
+                collapsed.incrementAndGet();
+                continue;
+            }
+            deliver(pkg, time + offset);
+        }
+
+        long drops = dropped.get();
+        if (drops != droppedSeen) {
+            droppedSeen = drops;
+            // Some transitions were lost while the ring was full; settle on the newest one
+            deliver(latest, latestTime + offset);
+        }
+    }
+
+    private void deliver(String pkg, long time) {
+        long start = Diagnostics.begin(Diagnostics.EVENT);
+        try {
+            sink.onTransition(pkg, time);
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling transition to " + pkg + ": " + e.getMessage());
+        } finally {
+            Diagnostics.end(Diagnostics.EVENT, start);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package foz.cueaside.aa;
+
+import android.accessibilityservice.AccessibilityServiceInfo;
+import android.view.accessibility.AccessibilityEvent;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * The window events the tracker needs from the system for a given trigger index. A rule
+ * set made only of launch triggers is scoped to the watched apps plus the launchers;
+ * anything that needs exits or foreground time falls back to every package. A watched
+ * app can be left for any app at all (recents, a notification, a shared link), so while
+ * one is in front the scope widens to every package until the switch away is seen.
+ * Otherwise that switch goes unseen and coming back reads as the same foreground app.
+ * Narrowing is only used with usage history off; the journal needs every switch.
+ */
+final class EventSubscription {
+    static final EventSubscription GLOBAL = new EventSubscription(null, null);
+
+    final String[] packages; // sorted; null means every package
+    private final String[] watched; // sorted; the packages whose launch triggers need the widening
+
+    private EventSubscription(String[] packages, String[] watched) {
+        this.packages = packages;
+        this.watched = watched;
+    }
+
+    static EventSubscription of(TriggerIndex index, Collection<String> anchors) {
+        // Nothing to narrow to
+        if (index.isEmpty() || anchors == null || anchors.isEmpty()) return GLOBAL;
+        TreeSet<String> scope = new TreeSet<>(anchors);
+        TreeSet<String> watched = new TreeSet<>();
+        for (String pkg : index.packages()) {
+            TriggerIndex.Bucket b = index.bucket(pkg);
+            if (b.exiting.length > 0 || b.used.length > 0) return GLOBAL;
+            for (TriggerIndex.Trigger t : b.launched) {
+                if (needsEveryTransition(t)) return GLOBAL;
+            }
+            scope.add(pkg);
+            watched.add(pkg);
+        }
+        return new EventSubscription(scope.toArray(new String[0]), watched.toArray(new String[0]));
+    }
+
+    // What to subscribe to while pkg is in front
+    EventSubscription whileInFront(String pkg) {
+        if (watched == null || pkg == null) return this;
+        return Arrays.binarySearch(watched, pkg) >= 0 ? GLOBAL : this;
+    }
+
+    // Group limits read foreground totals, which are only right if every switch is seen
+    private static boolean needsEveryTransition(TriggerIndex.Trigger t) {
+        for (RuleEngine.Condition c : t.conditions) {
+            if (c instanceof Conditions.GroupUsage) return true;
+        }
+        return false;
+    }
+
+    boolean isGlobal() {
+        return packages == null;
+    }
+
+    void applyTo(AccessibilityServiceInfo info) {
+        info.eventTypes = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+        info.packageNames = packages;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EventSubscription && Arrays.equals(packages, ((EventSubscription) o).packages);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(packages);
+    }
+}
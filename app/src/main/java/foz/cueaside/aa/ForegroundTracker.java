@@ -0,0 +1,105 @@
+package foz.cueaside.aa;
+
+import android.os.Handler;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which app is really in front. Overlay packages are ignored, and a new
+ * package is only confirmed once it has held the foreground for the settle window,
+ * so A -> B -> A inside the window is no change at all. Runs on the worker thread.
+ */
+class ForegroundTracker implements EventPipeline.Sink {
+    static final long DEFAULT_SETTLE_MS = 500;
+    // Windows from these show on top of the real app without replacing it
+    private static final Set<String> DEFAULT_IGNORED = new HashSet<>(Arrays.asList(
+            "",
+            "android",
+            "com.android.systemui",
+            "com.android.permissioncontroller",
+            "com.google.android.permissioncontroller",
+            "com.android.packageinstaller",
+            "com.google.android.packageinstaller"));
+
+    private final Handler handler;
+    private final EventPipeline.Sink confirmed;
+    private final Runnable settleTask = this::settle;
+
+    private volatile Set<String> ignored = DEFAULT_IGNORED;
+    private volatile long settleMs = DEFAULT_SETTLE_MS;
+
+    private String current = "";
+    private String pending;
+    private long pendingTime;
+    private long suppressed;
+
+    ForegroundTracker(Handler handler, EventPipeline.Sink confirmed) {
+        this.handler = handler;
+        this.confirmed = confirmed;
+    }
+
+    void configure(long settleMs, Collection<String> extraIgnored) {
+        Set<String> set = new HashSet<>(DEFAULT_IGNORED);
+        if (extraIgnored != null) set.addAll(extraIgnored);
+        this.ignored = Collections.unmodifiableSet(set);
+        this.settleMs = Math.max(0, settleMs);
+    }
+
+    long getSuppressedCount() {
+        return suppressed;
+    }
+
+    // Takes pkg as the confirmed app without reporting it; false when it is an ignored package
+    boolean seed(String pkg) {
+        if (ignored.contains(pkg)) return false;
+        handler.removeCallbacks(settleTask);
+        pending = null;
+        current = pkg;
+        return true;
+    }
+
+    @Override
+    public void onTransition(String pkg, long time) {
+        if (ignored.contains(pkg)) {
+            suppressed++;
+            return;
+        }
+        // Polled events arrive in batches; one that held the foreground long enough by its
+        // own timestamps counts even though the settle timer had no chance to run
+        if (pending != null && time - pendingTime >= settleMs) {
+            handler.removeCallbacks(settleTask);
+            settle();
+        }
+        if (pkg.equals(current)) {
+            // Came back before the other app settled: nothing changed
+            if (pending != null) {
+                handler.removeCallbacks(settleTask);
+                pending = null;
+                suppressed++;
+            }
+            return;
+        }
+        if (pkg.equals(pending)) return;
+        if (pending != null) suppressed++;
+
+        pending = pkg;
+        pendingTime = time;
+        handler.removeCallbacks(settleTask);
+        if (settleMs == 0) {
+            settle();
+        } else {
+            handler.postDelayed(settleTask, settleMs);
+        }
+    }
+
+    private void settle() {
+        if (pending == null) return;
+        String pkg = pending;
+        pending = null;
+        current = pkg;
+        confirmed.onTransition(pkg, pendingTime);
+    }
+}
@@ -0,0 +1,229 @@
+package foz.cueaside.aa;
+
+import android.util.Log;
+import androidx.collection.LruCache;
+import androidx.core.util.AtomicFile;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routine icons kept out of line. Each data URI is stored once under the hash of its
+ * content and routines hold "blob:<hash>" instead; a blob is deleted when the last
+ * routine referring to it goes away.
+ */
+class IconStore {
+    private static final String TAG = "IconStore";
+    private static final String DIR_NAME = "icons";
+    static final String REF_PREFIX = "blob:";
+    // Decoded data URIs kept for the list screen, weighed by length
+    private static final int CACHE_CHARS = 2 * 1024 * 1024;
+
+    private final File dir;
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private final LruCache<String, String> cache = new LruCache<String, String>(CACHE_CHARS) {
+        @Override
+        protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+    };
+
+    IconStore(File filesDir) {
+        this.dir = new File(filesDir, DIR_NAME);
+    }
+
+    static boolean isRef(String value) {
+        return value != null && value.startsWith(REF_PREFIX);
+    }
+
+    // Returns the routine itself when nothing is inline, otherwise a copy holding refs
+    synchronized Routine intern(Routine routine) throws IOException {
+        boolean inline = routine.icon != null && isInline(routine.icon.src);
+        if (routine.apps != null) {
+            for (Routine.AppInfo a : routine.apps) {
+                inline |= a != null && isInline(a.icon);
+            }
+        }
+        if (!inline) return routine;
+
+        Routine copy = routine.copy();
+        if (routine.icon != null) {
+            copy.icon = copyIcon(routine.icon);
+            copy.icon.src = put(routine.icon.src);
+        }
+        if (routine.apps != null) {
+            copy.apps = new ArrayList<>();
+            for (Routine.AppInfo a : routine.apps) {
+                Routine.AppInfo c = copyApp(a);
+                if (c != null) c.icon = put(a.icon);
+                copy.apps.add(c);
+            }
+        }
+        return copy;
+    }
+
+    // The reverse of intern, for anything leaving the app
+    Routine inline(Routine routine) {
+        Routine copy = routine.copy();
+        if (routine.icon != null) {
+            copy.icon = copyIcon(routine.icon);
+            copy.icon.src = resolve(routine.icon.src);
+        }
+        if (routine.apps != null) {
+            copy.apps = new ArrayList<>();
+            for (Routine.AppInfo a : routine.apps) {
+                Routine.AppInfo c = copyApp(a);
+                if (c != null) c.icon = resolve(a.icon);
+                copy.apps.add(c);
+            }
+        }
+        return copy;
+    }
+
+    // Loads a blob's data URI; plain values pass through and a missing blob gives null
+    String resolve(String value) {
+        if (!isRef(value)) return value;
+        String hash = value.substring(REF_PREFIX.length());
+        if (!hash.matches("[0-9a-f]+")) return null;
+        synchronized (cache) {
+            String cached = cache.get(hash);
+            if (cached != null) return cached;
+        }
+        try {
+            String data = new String(new AtomicFile(new File(dir, hash)).readFully(), StandardCharsets.UTF_8);
+            synchronized (cache) {
+                cache.put(hash, data);
+            }
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading icon " + hash + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Counts references from the full routine list and deletes blobs nobody refers to
+    synchronized void reset(List<Routine> routines) {
+        refCounts.clear();
+        for (Routine r : routines) {
+            retain(r);
+        }
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!refCounts.containsKey(f.getName()) && !f.delete()) {
+                Log.w(TAG, "Could not delete unused icon " + f.getName());
+            }
+        }
+    }
+
+    synchronized void retain(Routine routine) {
+        for (String hash : hashes(routine)) {
+            Integer n = refCounts.get(hash);
+            refCounts.put(hash, n == null ? 1 : n + 1);
+        }
+    }
+
+    synchronized void release(Routine routine) {
+        for (String hash : hashes(routine)) {
+            Integer n = refCounts.get(hash);
+            if (n != null && n > 1) {
+                refCounts.put(hash, n - 1);
+                continue;
+            }
+            refCounts.remove(hash);
+            synchronized (cache) {
+                cache.remove(hash);
+            }
+            new AtomicFile(new File(dir, hash)).delete();
+        }
+    }
+
+    // Drops blobs interned for a routine that never got published, unless something holds them
+    synchronized void discard(Routine routine) {
+        for (String hash : hashes(routine)) {
+            if (refCounts.containsKey(hash)) continue;
+            synchronized (cache) {
+                cache.remove(hash);
+            }
+            new AtomicFile(new File(dir, hash)).delete();
+        }
+    }
+
+    private String put(String value) throws IOException {
+        if (!isInline(value)) return value;
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        String hash = sha256(data);
+        File file = new File(dir, hash);
+        // Same content, same name: an existing file is already this icon
+        if (!file.exists()) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            AtomicFile atomic = new AtomicFile(file);
+            FileOutputStream out = atomic.startWrite();
+            try {
+                out.write(data);
+                atomic.finishWrite(out);
+            } catch (IOException e) {
+                atomic.failWrite(out);
+                throw e;
+            }
+        }
+        return REF_PREFIX + hash;
+    }
+
+    private static List<String> hashes(Routine routine) {
+        List<String> hashes = new ArrayList<>();
+        if (routine.icon != null && isRef(routine.icon.src)) {
+            hashes.add(routine.icon.src.substring(REF_PREFIX.length()));
+        }
+        if (routine.apps != null) {
+            for (Routine.AppInfo a : routine.apps) {
+                if (a != null && isRef(a.icon)) hashes.add(a.icon.substring(REF_PREFIX.length()));
+            }
+        }
+        return hashes;
+    }
+
+    private static boolean isInline(String value) {
+        return value != null && value.startsWith("data:");
+    }
+
+    private static Routine.IconInfo copyIcon(Routine.IconInfo icon) {
+        Routine.IconInfo c = new Routine.IconInfo();
+        c.type = icon.type;
+        c.pkg = icon.pkg;
+        c.e = icon.e;
+        c.src = icon.src;
+        return c;
+    }
+
+    private static Routine.AppInfo copyApp(Routine.AppInfo app) {
+        if (app == null) return null;
+        Routine.AppInfo c = new Routine.AppInfo();
+        c.name = app.name;
+        c.pkg = app.pkg;
+        c.icon = app.icon;
+        c.iconKey = app.iconKey;
+        return c;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
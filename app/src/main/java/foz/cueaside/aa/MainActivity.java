@@ -1,6 +1,7 @@
 package foz.cueaside.aa;
 
 import android.annotation.SuppressLint;
+import android.content.Intent;
 import android.os.Bundle;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
@@ -16,8 +17,14 @@ public class MainActivity extends AppCompatActivity {
     @SuppressLint("SetJavaScriptEnabled")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long startup = Diagnostics.beginAsync(Diagnostics.STARTUP);
         super.onCreate(savedInstanceState);
 
+        // Routines, settings and the app index load while the WebView initialises
+        cueBridge = new CueBridge(this);
+        cueBridge.traceStartup(startup);
+        cueBridge.preload();
+
         checkPermissions();
 
         webView = new WebView(this);
@@ -37,7 +44,7 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
-        cueBridge = new CueBridge(this, webView);
+        cueBridge.attach(webView);
         webView.addJavascriptInterface(cueBridge, "CueBridge");
 
         webView.loadUrl("file:///android_asset/index.html");
@@ -54,11 +61,29 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        // Permissions may have changed in settings while we were away
+        UsagePollService.startIfNeeded(this);
         if (webView != null) {
             webView.evaluateJavascript("if(window.checkPermissions) window.checkPermissions();", null);
         }
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (cueBridge != null) {
+            cueBridge.onDocumentResult(requestCode, resultCode, data);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (cueBridge != null) {
+            cueBridge.release();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         if (webView.canGoBack()) {
@@ -3,78 +3,313 @@ package foz.cueaside.aa;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import androidx.core.app.NotificationCompat;
+import android.util.LruCache;
 import androidx.core.app.NotificationManagerCompat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class NotificationHelper {
     private static final String CHANNEL_ID_DEFAULT = "cue_aside_notifications";
     private static final String CHANNEL_ID_HIGH = "cue_aside_notifications_high";
+    private static final String CHANNEL_ID_TRACKING = "cue_aside_tracking";
+    static final int TRACKING_NOTIFICATION_ID = 1;
     private static final Handler handler = new Handler(Looper.getMainLooper());
 
-    public static void showNotification(Context context, Routine routine) {
-        try {
-            String title = routine.title;
-            String message = routine.msg;
-            boolean highPriority = routine.highPriority;
-            int timeout = routine.timeout;
+    // A routine firing again this soon updates its existing notification instead of alerting
+    private static final long COOLDOWN_MS = 60 * 1000L;
+    // Across all routines: a burst of BUCKET_SIZE posts, then one more every REFILL_MS
+    private static final int BUCKET_SIZE = 4;
+    private static final long REFILL_MS = 15 * 1000L;
 
-            String channelId = highPriority ? CHANNEL_ID_HIGH : CHANNEL_ID_DEFAULT;
-            createNotificationChannel(context, channelId, highPriority);
+    private static final int DEFER = 0;
+    private static final int ALERT = 1;
+    private static final int UPDATE = 2;
+
+    private static final class Fired {
+        long lastAlert;
+        int count;
+        // Latest firing of an alert that is waiting for a token
+        Routine deferred;
+    }
 
-            String displayTitle = (title != null && !title.isEmpty()) ? title : "CueAside";
+    // Everything about a routine's notification that stays the same between firings. The
+    // builder is reused; a post only sets when, number and alert-once on it
+    private static final class Template {
+        final Routine routine;
+        final long timeoutMs;
+        final NotificationCompat.Builder builder;
+
+        Template(Context context, Routine routine, Bitmap largeIcon) {
+            this.routine = routine;
+            this.timeoutMs = routine.timeout > 0 ? routine.timeout * 1000L : 0;
+            String displayTitle = (routine.title != null && !routine.title.isEmpty()) ? routine.title : "CueAside";
             if (routine.cueName != null && !routine.cueName.isEmpty()) {
                 displayTitle = "[" + routine.cueName + "] " + displayTitle;
             }
-
-            NotificationCompat.Builder builder = new NotificationCompat.Builder(context, channelId)
+            builder = new NotificationCompat.Builder(context.getApplicationContext(),
+                    routine.highPriority ? CHANNEL_ID_HIGH : CHANNEL_ID_DEFAULT)
                     .setSmallIcon(android.R.drawable.ic_dialog_info)
                     .setContentTitle(displayTitle)
-                    .setContentText(message)
-                    .setPriority(highPriority ? NotificationCompat.PRIORITY_HIGH : NotificationCompat.PRIORITY_DEFAULT)
+                    .setContentText(routine.msg)
+                    .setPriority(routine.highPriority ? NotificationCompat.PRIORITY_HIGH : NotificationCompat.PRIORITY_DEFAULT)
                     .setAutoCancel(true);
-
-            // Handle Icon
-            if (routine.icon != null && "preset".equals(routine.icon.type)) {
-                // In a real app we might convert emoji to bitmap, but for now we use default icon
-                // and maybe put emoji in title if title is empty
+            if (largeIcon != null) {
+                builder.setLargeIcon(largeIcon);
             }
+            if (timeoutMs > 0) {
+                builder.setTimeoutAfter(timeoutMs);
+            }
+        }
+
+        synchronized android.app.Notification build(int action, int count) {
+            return builder.setWhen(System.currentTimeMillis())
+                    .setOnlyAlertOnce(action == UPDATE)
+                    .setNumber(count > 1 ? count : 0)
+                    .setSubText(count > 1 ? count + " times" : null)
+                    .build();
+        }
+    }
 
-            final int notificationId = (int) System.currentTimeMillis();
-            NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+    private static final int PRESET_ICON_DP = 48;
+    private static final Map<String, Template> templates = new ConcurrentHashMap<>();
+    private static final LruCache<String, Bitmap> presetIcons = new LruCache<>(32);
+    private static volatile boolean channelsCreated;
 
-            if (androidx.core.content.ContextCompat.checkSelfPermission(context, android.Manifest.permission.POST_NOTIFICATIONS) == android.content.pm.PackageManager.PERMISSION_GRANTED || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.TIRAMISU) {
-                notificationManager.notify(notificationId, builder.build());
+    private static final Map<String, Fired> fired = new HashMap<>();
+    private static int tokens = BUCKET_SIZE;
+    private static long refilledAt;
+    private static long suppressed;
+    // Routines whose alert is deferred, oldest first; drained as the bucket refills
+    private static final ArrayDeque<String> deferredKeys = new ArrayDeque<>();
+    private static Context deferredContext;
+    private static final Runnable drainTask = NotificationHelper::drainDeferred;
 
-                if (timeout > 0) {
-                    handler.postDelayed(() -> {
-                        notificationManager.cancel(notificationId);
-                    }, timeout * 1000L);
+    public static void showNotification(Context context, Routine routine) {
+        long start = Diagnostics.begin(Diagnostics.NOTIFY);
+        try {
+            String key = routine.id != null ? routine.id : String.valueOf(routine.seqId);
+            Fired state;
+            int count;
+            int action;
+            synchronized (NotificationHelper.class) {
+                long now = SystemClock.elapsedRealtime();
+                state = fired.get(key);
+                if (state == null) {
+                    state = new Fired();
+                    fired.put(key, state);
+                }
+                if (state.deferred != null) {
+                    // Already waiting for a token; the alert goes out later with the latest count
+                    action = DEFER;
+                    state.deferred = routine;
+                    state.count++;
+                } else if (state.count > 0 && now - state.lastAlert < COOLDOWN_MS) {
+                    // Quietly updates a notification already shown, so it costs no token
+                    action = UPDATE;
+                    state.count++;
+                } else if (takeToken(now)) {
+                    action = ALERT;
+                    state.lastAlert = now;
+                    state.count = 1;
+                } else {
+                    action = DEFER;
+                    state.deferred = routine;
+                    state.count = 1;
+                    deferredKeys.add(key);
+                    deferredContext = context.getApplicationContext();
+                    scheduleDrain(now);
                 }
+                count = state.count;
+                if (action == DEFER) suppressed++;
             }
+            if (action == DEFER) return;
+            post(context, routine, key, state, action, count);
         } catch (Exception e) {
             android.util.Log.e("NotificationHelper", "Error showing notification: " + e.getMessage());
+        } finally {
+            Diagnostics.end(Diagnostics.NOTIFY, start);
         }
     }
 
-    private static void createNotificationChannel(Context context, String channelId, boolean high) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            CharSequence name = high ? "CueAside High Priority" : "CueAside Notifications";
-            String description = high ? "High priority alerts" : "Standard alerts";
-            int importance = high ? NotificationManager.IMPORTANCE_HIGH : NotificationManager.IMPORTANCE_DEFAULT;
-
-            NotificationChannel channel = new NotificationChannel(channelId, name, importance);
-            channel.setDescription(description);
-            if (high) {
-                channel.enableLights(true);
-                channel.enableVibration(true);
-                channel.setBypassDnd(true);
+    private static void post(Context context, Routine routine, String key, Fired state, int action, int count) {
+        ensureChannels(context);
+        Template template = template(context, routine);
+        final long timeoutMs = template.timeoutMs;
+
+        // Stable per routine so repeat firings replace rather than stack
+        final int notificationId = key.hashCode();
+        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+
+        if (androidx.core.content.ContextCompat.checkSelfPermission(context, android.Manifest.permission.POST_NOTIFICATIONS) == android.content.pm.PackageManager.PERMISSION_GRANTED || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.TIRAMISU) {
+            notificationManager.notify(notificationId, template.build(action, count));
+
+            // setTimeoutAfter only exists from Oreo; before that keep one pending cancel per routine
+            if (timeoutMs > 0 && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                handler.removeCallbacksAndMessages(state);
+                handler.postAtTime(() -> notificationManager.cancel(notificationId), state,
+                        SystemClock.uptimeMillis() + timeoutMs);
             }
+        }
+    }
+
+    // Main thread: posts deferred alerts in the order they were held, as far as tokens allow
+    private static void drainDeferred() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (NotificationHelper.class) {
+            long now = SystemClock.elapsedRealtime();
+            while (!deferredKeys.isEmpty()) {
+                Fired state = fired.get(deferredKeys.peek());
+                if (state == null || state.deferred == null) {
+                    deferredKeys.poll();
+                    continue;
+                }
+                if (!takeToken(now)) break;
+                String key = deferredKeys.poll();
+                Routine routine = state.deferred;
+                int count = state.count;
+                state.deferred = null;
+                state.lastAlert = now;
+                Context context = deferredContext;
+                ready.add(() -> post(context, routine, key, state, ALERT, count));
+            }
+            if (!deferredKeys.isEmpty()) scheduleDrain(now);
+        }
+        for (Runnable r : ready) {
+            try {
+                r.run();
+            } catch (Exception e) {
+                android.util.Log.e("NotificationHelper", "Error showing notification: " + e.getMessage());
+            }
+        }
+    }
+
+    // Caller holds the class lock
+    private static void scheduleDrain(long now) {
+        handler.removeCallbacks(drainTask);
+        handler.postDelayed(drainTask, Math.max(0, refilledAt + REFILL_MS - now));
+    }
+
+    // Builds templates for new or edited routines ahead of their first firing
+    static void prepare(Context context, List<Routine> routines) {
+        ensureChannels(context);
+        Set<String> live = new HashSet<>();
+        for (Routine r : routines) {
+            if (r.id == null) {
+                // Keyed the way showNotification keys it
+                live.add(String.valueOf(r.seqId));
+                continue;
+            }
+            live.add(r.id);
+            template(context, r);
+        }
+        templates.keySet().retainAll(live);
+        // Cooldown state of deleted routines would otherwise stay for the life of the process
+        synchronized (NotificationHelper.class) {
+            fired.keySet().retainAll(live);
+            deferredKeys.retainAll(live);
+        }
+    }
+
+    // Next post registers the channels again, e.g. after the user deleted one in settings
+    static void invalidateChannels() {
+        channelsCreated = false;
+    }
+
+    // Routines are replaced rather than mutated on edit, so identity says whether a template is current
+    private static Template template(Context context, Routine routine) {
+        Template t = routine.id != null ? templates.get(routine.id) : null;
+        if (t != null && t.routine == routine) return t;
+        t = new Template(context, routine, presetIcon(context, routine.icon));
+        if (routine.id != null) templates.put(routine.id, t);
+        return t;
+    }
+
+    private static Bitmap presetIcon(Context context, Routine.IconInfo icon) {
+        if (icon == null || !"preset".equals(icon.type) || icon.e == null || icon.e.isEmpty()) return null;
+        synchronized (presetIcons) {
+            Bitmap cached = presetIcons.get(icon.e);
+            if (cached != null) return cached;
+            int size = Math.max(1, Math.round(PRESET_ICON_DP * context.getResources().getDisplayMetrics().density));
+            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setTextSize(size * 0.8f);
+            paint.setTextAlign(Paint.Align.CENTER);
+            float baseline = size / 2f - (paint.descent() + paint.ascent()) / 2f;
+            new Canvas(bitmap).drawText(icon.e, size / 2f, baseline, paint);
+            presetIcons.put(icon.e, bitmap);
+            return bitmap;
+        }
+    }
+
+    // The ongoing notification the usage polling service runs under
+    static android.app.Notification buildTrackingNotification(Context context) {
+        ensureChannels(context);
+        return new NotificationCompat.Builder(context, CHANNEL_ID_TRACKING)
+                .setSmallIcon(android.R.drawable.ic_dialog_info)
+                .setContentTitle("CueAside")
+                .setContentText("Watching app usage for your routines")
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setOngoing(true)
+                .build();
+    }
+
+    static synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    private static boolean takeToken(long now) {
+        if (refilledAt == 0) refilledAt = now;
+        long refills = (now - refilledAt) / REFILL_MS;
+        if (refills > 0) {
+            tokens = (int) Math.min(BUCKET_SIZE, tokens + refills);
+            refilledAt += refills * REFILL_MS;
+        }
+        if (tokens == 0) return false;
+        tokens--;
+        return true;
+    }
+
+    private static void ensureChannels(Context context) {
+        if (channelsCreated || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+        List<NotificationChannel> channels = new ArrayList<>();
+        channels.add(createNotificationChannel(CHANNEL_ID_DEFAULT, false));
+        channels.add(createNotificationChannel(CHANNEL_ID_HIGH, true));
+        NotificationChannel tracking = new NotificationChannel(CHANNEL_ID_TRACKING, "CueAside Tracking",
+                NotificationManager.IMPORTANCE_MIN);
+        tracking.setDescription("Shown while usage is tracked without the accessibility service");
+        tracking.setShowBadge(false);
+        channels.add(tracking);
+        NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
+        notificationManager.createNotificationChannels(channels);
+        channelsCreated = true;
+    }
+
+    private static NotificationChannel createNotificationChannel(String channelId, boolean high) {
+        CharSequence name = high ? "CueAside High Priority" : "CueAside Notifications";
+        String description = high ? "High priority alerts" : "Standard alerts";
+        int importance = high ? NotificationManager.IMPORTANCE_HIGH : NotificationManager.IMPORTANCE_DEFAULT;
 
-            NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
-            notificationManager.createNotificationChannel(channel);
+        NotificationChannel channel = new NotificationChannel(channelId, name, importance);
+        channel.setDescription(description);
+        if (high) {
+            channel.enableLights(true);
+            channel.enableVibration(true);
+            channel.setBypassDnd(true);
         }
+        return channel;
     }
 }
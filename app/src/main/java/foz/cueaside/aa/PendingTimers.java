@@ -0,0 +1,187 @@
+package foz.cueaside.aa;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable copy of the session and total-usage deadlines waiting on the app in front, so
+ * a restarted service can pick them up again, plus the one AlarmManager alarm that
+ * covers deadlines too far out to hold an in-process wakeup for.
+ */
+class PendingTimers {
+    private static final String TAG = "PendingTimers";
+    private static final String PREF_NAME = "CueAsideTimers";
+    private static final String KEY_BOOT_COUNT = "bootCount";
+    private static final String KEY_ELAPSED = "elapsed";
+    private static final String TIMER_PREFIX = "t:";
+    static final String ACTION_ALARM = "foz.cueaside.aa.action.TIMER_ALARM";
+
+    static final int SESSION = 0;
+    static final int TOTAL = 1;
+    static final int BUDGET = 2;
+
+    static final class Pending {
+        final String routineId;
+        final String pkg;
+        final int kind;
+        final long due;
+        final long sessionStart;
+
+        Pending(String routineId, String pkg, int kind, long due, long sessionStart) {
+            this.routineId = routineId;
+            this.pkg = pkg;
+            this.kind = kind;
+            this.due = due;
+            this.sessionStart = sessionStart;
+        }
+    }
+
+    private static PendingTimers instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private Map<String, Pending> pending;
+
+    static synchronized PendingTimers getInstance(Context context) {
+        if (instance == null) {
+            instance = new PendingTimers(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PendingTimers(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    static String key(String routineId, String pkg) {
+        return routineId + "\n" + pkg;
+    }
+
+    synchronized List<Pending> all() {
+        return new ArrayList<>(load().values());
+    }
+
+    synchronized void put(Pending p) {
+        String key = key(p.routineId, p.pkg);
+        load().put(key, p);
+        prefs.edit()
+                .putString(TIMER_PREFIX + key, p.kind + ":" + p.due + ":" + p.sessionStart)
+                .putLong(KEY_ELAPSED, SystemClock.elapsedRealtime())
+                .apply();
+    }
+
+    synchronized void remove(String routineId, String pkg) {
+        String key = key(routineId, pkg);
+        if (load().remove(key) != null) {
+            prefs.edit().remove(TIMER_PREFIX + key).apply();
+        }
+    }
+
+    synchronized void removePackage(String pkg) {
+        SharedPreferences.Editor editor = null;
+        for (Iterator<Map.Entry<String, Pending>> it = load().entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Pending> e = it.next();
+            if (!e.getValue().pkg.equals(pkg)) continue;
+            it.remove();
+            if (editor == null) editor = prefs.edit();
+            editor.remove(TIMER_PREFIX + e.getKey());
+        }
+        if (editor != null) editor.apply();
+    }
+
+    // A reboot ends every session that was waiting, so nothing from before it is kept
+    synchronized void onBoot() {
+        pending = null;
+        load();
+    }
+
+    // One alarm for the earliest far deadline; Long.MAX_VALUE cancels it
+    void setAlarm(long wallTime) {
+        try {
+            AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            Intent intent = new Intent(context, BootReceiver.class).setAction(ACTION_ALARM);
+            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) flags |= PendingIntent.FLAG_IMMUTABLE;
+            PendingIntent operation = PendingIntent.getBroadcast(context, 0, intent, flags);
+            if (wallTime == Long.MAX_VALUE) {
+                alarms.cancel(operation);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                alarms.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, wallTime, operation);
+            } else {
+                alarms.setExact(AlarmManager.RTC_WAKEUP, wallTime, operation);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting timer alarm: " + e.getMessage());
+        }
+    }
+
+    // Parsed once per process; entries written under an earlier boot are dropped here
+    private Map<String, Pending> load() {
+        if (pending != null) return pending;
+        pending = new HashMap<>();
+        int bootCount = bootCount();
+        SharedPreferences.Editor editor = prefs.edit();
+        if (rebootedSinceSaved(bootCount)) {
+            editor.clear()
+                    .putInt(KEY_BOOT_COUNT, bootCount)
+                    .putLong(KEY_ELAPSED, SystemClock.elapsedRealtime())
+                    .apply();
+            return pending;
+        }
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            if (!e.getKey().startsWith(TIMER_PREFIX)) continue;
+            String key = e.getKey().substring(TIMER_PREFIX.length());
+            Pending p = parse(key, String.valueOf(e.getValue()));
+            if (p != null) {
+                pending.put(key, p);
+            } else {
+                editor.remove(e.getKey());
+            }
+        }
+        editor.apply();
+        return pending;
+    }
+
+    // Setting the wall clock must not look like a reboot, so this never compares wall times
+    private boolean rebootedSinceSaved(int bootCount) {
+        if (bootCount >= 0) return prefs.getInt(KEY_BOOT_COUNT, -1) != bootCount;
+        // Without a boot count, time since boot going backwards is the tell
+        return SystemClock.elapsedRealtime() < prefs.getLong(KEY_ELAPSED, Long.MAX_VALUE);
+    }
+
+    // Settings.Global.BOOT_COUNT, or -1 before API 24 or where the device doesn't keep it
+    private int bootCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return -1;
+        try {
+            return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading boot count: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static Pending parse(String key, String value) {
+        int split = key.indexOf('\n');
+        String[] parts = value.split(":");
+        if (split < 0 || parts.length != 3) return null;
+        try {
+            return new Pending(key.substring(0, split), key.substring(split + 1),
+                    Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
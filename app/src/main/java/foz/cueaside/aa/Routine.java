@@ -10,7 +10,8 @@ public class Routine {
     public String cond; // "launched", "used", "exiting"
     public int dur;
     public String unit; // "m", "h", "s"
-    public String timeMode; // "session", "total"
+    public String timeMode; // "session", "total", "shared"
+    public String period; // "day", "week"; the window a "shared" budget resets on
     public IconInfo icon;
     public String title;
     public String msg;
@@ -18,11 +19,46 @@ public class Routine {
     public boolean enabled;
     public boolean highPriority;
     public int timeout; // seconds
+    public List<Constraint> when; // all must hold for the routine to fire
+
+    Routine copy() {
+        Routine r = new Routine();
+        r.id = id;
+        r.seqId = seqId;
+        r.cueName = cueName;
+        r.apps = apps;
+        r.cond = cond;
+        r.dur = dur;
+        r.unit = unit;
+        r.timeMode = timeMode;
+        r.period = period;
+        r.icon = icon;
+        r.title = title;
+        r.msg = msg;
+        r.bubble = bubble;
+        r.enabled = enabled;
+        r.highPriority = highPriority;
+        r.timeout = timeout;
+        r.when = when;
+        return r;
+    }
 
     public static class AppInfo {
         public String name;
         public String pkg;
         public String icon; // base64 or emoji
+        public String iconKey; // AppIconCache key, set on installed-app listings
+    }
+
+    public static class Constraint {
+        public String type; // "time", "days", "launches", "groupUsage"
+        public int from; // minute of day
+        public int to;
+        public int days; // bit 0 = Sunday
+        public int count; // launches in the past hour
+        public List<String> pkgs;
+        public int dur;
+        public String unit;
     }
 
     public static class IconInfo {
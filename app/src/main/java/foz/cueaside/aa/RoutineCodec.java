@@ -0,0 +1,303 @@
+package foz.cueaside.aa;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand-written JSON codec for routines, reading and writing the same shape Gson
+ * produces for {@link Routine} without reflection or an intermediate tree. Package
+ * names and the small enum-like fields are interned since every routine repeats them.
+ */
+final class RoutineCodec {
+    private RoutineCodec() {
+    }
+
+    static Routine decode(String json) throws IOException {
+        JsonReader in = new JsonReader(new StringReader(json));
+        in.setLenient(true);
+        return read(in);
+    }
+
+    static List<Routine> decodeList(String json) throws IOException {
+        JsonReader in = new JsonReader(new StringReader(json));
+        in.setLenient(true);
+        return readList(in);
+    }
+
+    static String encode(Routine routine) throws IOException {
+        StringWriter sw = new StringWriter();
+        write(new JsonWriter(sw), routine, null);
+        return sw.toString();
+    }
+
+    static String encodeList(List<Routine> routines) throws IOException {
+        StringWriter sw = new StringWriter();
+        writeList(new JsonWriter(sw), routines, null);
+        return sw.toString();
+    }
+
+    static List<Routine> readList(JsonReader in) throws IOException {
+        List<Routine> routines = new ArrayList<>();
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return routines;
+        }
+        in.beginArray();
+        while (in.hasNext()) {
+            Routine r = read(in);
+            if (r != null) routines.add(r);
+        }
+        in.endArray();
+        return routines;
+    }
+
+    static Routine read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Routine r = new Routine();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id": r.id = in.nextString(); break;
+                case "seqId": r.seqId = in.nextInt(); break;
+                case "cueName": r.cueName = in.nextString(); break;
+                case "apps": r.apps = readApps(in); break;
+                case "cond": r.cond = in.nextString().intern(); break;
+                case "dur": r.dur = in.nextInt(); break;
+                case "unit": r.unit = in.nextString().intern(); break;
+                case "timeMode": r.timeMode = in.nextString().intern(); break;
+                case "period": r.period = in.nextString().intern(); break;
+                case "icon": r.icon = readIcon(in); break;
+                case "title": r.title = in.nextString(); break;
+                case "msg": r.msg = in.nextString(); break;
+                case "bubble": r.bubble = readBoolean(in); break;
+                case "enabled": r.enabled = readBoolean(in); break;
+                case "highPriority": r.highPriority = readBoolean(in); break;
+                case "timeout": r.timeout = in.nextInt(); break;
+                case "when": r.when = readConstraints(in); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+        return r;
+    }
+
+    static void writeList(JsonWriter out, List<Routine> routines, String iconRefPrefix) throws IOException {
+        out.beginArray();
+        for (Routine r : routines) {
+            write(out, r, iconRefPrefix);
+        }
+        out.endArray();
+    }
+
+    // With a ref prefix, stored icons are written as "iconRef": "blob:<hash>" and any still
+    // inline as "iconRef": "<prefix><id>:<slot>"
+    static void write(JsonWriter out, Routine r, String iconRefPrefix) throws IOException {
+        String refBase = iconRefPrefix != null ? iconRefPrefix + r.id + ":" : null;
+        out.beginObject();
+        writeString(out, "id", r.id);
+        out.name("seqId").value(r.seqId);
+        writeString(out, "cueName", r.cueName);
+        if (r.apps != null) {
+            out.name("apps").beginArray();
+            for (int i = 0; i < r.apps.size(); i++) {
+                Routine.AppInfo a = r.apps.get(i);
+                if (a == null) {
+                    out.nullValue();
+                    continue;
+                }
+                out.beginObject();
+                writeString(out, "name", a.name);
+                writeString(out, "pkg", a.pkg);
+                writeIcon(out, "icon", a.icon, refBase != null ? refBase + i : null);
+                writeString(out, "iconKey", a.iconKey);
+                out.endObject();
+            }
+            out.endArray();
+        }
+        writeString(out, "cond", r.cond);
+        out.name("dur").value(r.dur);
+        writeString(out, "unit", r.unit);
+        writeString(out, "timeMode", r.timeMode);
+        writeString(out, "period", r.period);
+        if (r.icon != null) {
+            out.name("icon").beginObject();
+            writeString(out, "type", r.icon.type);
+            writeString(out, "pkg", r.icon.pkg);
+            writeString(out, "e", r.icon.e);
+            writeIcon(out, "src", r.icon.src, refBase != null ? refBase + "icon" : null);
+            out.endObject();
+        }
+        writeString(out, "title", r.title);
+        writeString(out, "msg", r.msg);
+        out.name("bubble").value(r.bubble);
+        out.name("enabled").value(r.enabled);
+        out.name("highPriority").value(r.highPriority);
+        out.name("timeout").value(r.timeout);
+        if (r.when != null) {
+            out.name("when").beginArray();
+            for (Routine.Constraint c : r.when) {
+                writeConstraint(out, c);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    private static List<Routine.Constraint> readConstraints(JsonReader in) throws IOException {
+        List<Routine.Constraint> constraints = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                constraints.add(null);
+                continue;
+            }
+            Routine.Constraint c = new Routine.Constraint();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "type": c.type = in.nextString().intern(); break;
+                    case "from": c.from = in.nextInt(); break;
+                    case "to": c.to = in.nextInt(); break;
+                    case "days": c.days = in.nextInt(); break;
+                    case "count": c.count = in.nextInt(); break;
+                    case "pkgs":
+                        c.pkgs = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            if (in.peek() == JsonToken.NULL) {
+                                in.nextNull();
+                            } else {
+                                c.pkgs.add(in.nextString().intern());
+                            }
+                        }
+                        in.endArray();
+                        break;
+                    case "dur": c.dur = in.nextInt(); break;
+                    case "unit": c.unit = in.nextString().intern(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            constraints.add(c);
+        }
+        in.endArray();
+        return constraints;
+    }
+
+    private static void writeConstraint(JsonWriter out, Routine.Constraint c) throws IOException {
+        if (c == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        writeString(out, "type", c.type);
+        out.name("from").value(c.from);
+        out.name("to").value(c.to);
+        out.name("days").value(c.days);
+        out.name("count").value(c.count);
+        if (c.pkgs != null) {
+            out.name("pkgs").beginArray();
+            for (String pkg : c.pkgs) {
+                out.value(pkg);
+            }
+            out.endArray();
+        }
+        out.name("dur").value(c.dur);
+        writeString(out, "unit", c.unit);
+        out.endObject();
+    }
+
+    private static List<Routine.AppInfo> readApps(JsonReader in) throws IOException {
+        List<Routine.AppInfo> apps = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                apps.add(null);
+                continue;
+            }
+            Routine.AppInfo a = new Routine.AppInfo();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "name": a.name = in.nextString(); break;
+                    case "pkg": a.pkg = in.nextString().intern(); break;
+                    case "icon": a.icon = in.nextString(); break;
+                    case "iconKey": a.iconKey = in.nextString(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            apps.add(a);
+        }
+        in.endArray();
+        return apps;
+    }
+
+    private static Routine.IconInfo readIcon(JsonReader in) throws IOException {
+        Routine.IconInfo icon = new Routine.IconInfo();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "type": icon.type = in.nextString().intern(); break;
+                case "pkg": icon.pkg = in.nextString().intern(); break;
+                case "e": icon.e = in.nextString(); break;
+                case "src": icon.src = in.nextString(); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+        return icon;
+    }
+
+    // Gson's boolean adapter also takes "true"/"false" strings; keep accepting them
+    private static boolean readBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.STRING) return Boolean.parseBoolean(in.nextString());
+        return in.nextBoolean();
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) out.name(name).value(value);
+    }
+
+    private static void writeIcon(JsonWriter out, String name, String value, String ref) throws IOException {
+        if (value == null) return;
+        if (ref != null && IconStore.isRef(value)) {
+            out.name("iconRef").value(value);
+        } else if (ref != null && value.startsWith("data:")) {
+            out.name("iconRef").value(ref);
+        } else {
+            out.name(name).value(value);
+        }
+    }
+}
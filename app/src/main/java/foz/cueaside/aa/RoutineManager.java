@@ -2,57 +2,514 @@ package foz.cueaside.aa;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import java.lang.reflect.Type;
+import android.util.Log;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class RoutineManager {
+    private static final String TAG = "RoutineManager";
     private static final String PREF_NAME = "CueAsidePrefs";
     private static final String KEY_ROUTINES = "routines";
     private static final String KEY_SETTINGS = "settings";
+    // Ids become file names; anything longer than this is not one the app made
+    private static final int MAX_ID_LENGTH = 64;
+    private static final int MAX_IMPORT_PROBLEMS = 20;
+
+    private static RoutineManager instance;
+
+    public interface OnRoutinesChangedListener {
+        void onRoutinesChanged(List<Routine> routines);
+    }
+
+    // Each write bumps the revision and describes itself relative to the previous one
+    public interface OnRoutineDeltaListener {
+        void onRoutineDelta(Delta delta);
+    }
+
+    public static final class Snapshot {
+        public final long revision;
+        public final List<Routine> routines;
+
+        Snapshot(long revision, List<Routine> routines) {
+            this.revision = revision;
+            this.routines = routines;
+        }
+    }
+
+    public static final class Delta {
+        public final long base;
+        public final long revision;
+        public final List<Routine> upserted;
+        public final List<String> deleted;
+        public final List<String> order; // null when only existing routines changed
+
+        Delta(long base, long revision, List<Routine> upserted, List<String> deleted, List<String> order) {
+            this.base = base;
+            this.revision = revision;
+            this.upserted = upserted;
+            this.deleted = deleted;
+            this.order = order;
+        }
+    }
+
+    public interface OnSettingsChangedListener {
+        void onSettingsChanged(String settingsJson);
+    }
+
+    // Edits recorded in order and applied together: one write, one published revision
+    public static final class Batch {
+        private static final int ADD = 0;
+        private static final int DELETE = 1;
+        private static final int TOGGLE = 2;
+
+        private static final class Op {
+            final int kind;
+            final Routine routine;
+            final String id;
+            final boolean enabled;
+
+            Op(int kind, Routine routine, String id, boolean enabled) {
+                this.kind = kind;
+                this.routine = routine;
+                this.id = id;
+                this.enabled = enabled;
+            }
+        }
+
+        private final List<Op> ops = new ArrayList<>();
+
+        public Batch add(Routine routine) {
+            ops.add(new Op(ADD, routine, routine.id, true));
+            return this;
+        }
+
+        public Batch delete(String id) {
+            ops.add(new Op(DELETE, null, id, false));
+            return this;
+        }
+
+        public Batch toggle(String id, boolean enabled) {
+            ops.add(new Op(TOGGLE, null, id, enabled));
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return ops.isEmpty();
+        }
+    }
+
+    public static final class ImportResult {
+        public int added;
+        public int replaced;
+        public int skipped;
+        public int maxSeqId;
+        public final List<String> problems = new ArrayList<>();
+    }
 
     private SharedPreferences prefs;
-    private Gson gson;
+    private RoutineStore store;
+    private IconStore icons;
+    private final CopyOnWriteArrayList<OnRoutinesChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnRoutineDeltaListener> deltaListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnSettingsChangedListener> settingsListeners = new CopyOnWriteArrayList<>();
+    // Parsed once per process and replaced wholesale on every write; never mutated in place
+    private volatile Snapshot snapshot;
 
-    public RoutineManager(Context context) {
-        prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        gson = new Gson();
+    public static synchronized RoutineManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new RoutineManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private RoutineManager(Context context) {
+        this(context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE), context.getFilesDir());
+    }
+
+    RoutineManager(SharedPreferences prefs, File filesDir) {
+        this.prefs = prefs;
+        store = new RoutineStore(filesDir);
+        icons = new IconStore(filesDir);
     }
 
     public List<Routine> getRoutines() {
-        String json = prefs.getString(KEY_ROUTINES, "[]");
-        Type type = new TypeToken<ArrayList<Routine>>(){}.getType();
-        return gson.fromJson(json, type);
+        return getSnapshot().routines;
     }
 
-    public void saveRoutines(List<Routine> routines) {
-        String json = gson.toJson(routines);
-        prefs.edit().putString(KEY_ROUTINES, json).apply();
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    long start = Diagnostics.begin(Diagnostics.ROUTINE_LOAD);
+                    try {
+                        migrateLegacyRoutines();
+                        List<Routine> loaded = migrateInlineIcons(store.loadAll());
+                        icons.reset(loaded);
+                        snapshot = new Snapshot(1, Collections.unmodifiableList(loaded));
+                    } finally {
+                        Diagnostics.end(Diagnostics.ROUTINE_LOAD, start);
+                    }
+                }
+                current = snapshot;
+            }
+        }
+        return current;
     }
 
-    public void addRoutine(Routine routine) {
-        List<Routine> routines = getRoutines();
-        routines.add(0, routine);
-        saveRoutines(routines);
+    public void addOnRoutinesChangedListener(OnRoutinesChangedListener listener) {
+        listeners.addIfAbsent(listener);
     }
 
-    public void deleteRoutine(String id) {
-        List<Routine> routines = getRoutines();
-        routines.removeIf(r -> r.id.equals(id));
+    public void removeOnRoutinesChangedListener(OnRoutinesChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addOnRoutineDeltaListener(OnRoutineDeltaListener listener) {
+        deltaListeners.addIfAbsent(listener);
+    }
+
+    public void removeOnRoutineDeltaListener(OnRoutineDeltaListener listener) {
+        deltaListeners.remove(listener);
+    }
+
+    public void addOnSettingsChangedListener(OnSettingsChangedListener listener) {
+        settingsListeners.addIfAbsent(listener);
+    }
+
+    public void removeOnSettingsChangedListener(OnSettingsChangedListener listener) {
+        settingsListeners.remove(listener);
+    }
+
+    // Routines hold "blob:" refs in place of inline icons; this loads one for display
+    public String resolveIcon(String value) {
+        return icons.resolve(value);
+    }
+
+    // A copy with every icon inline again, for exports
+    public Routine withInlineIcons(Routine routine) {
+        return icons.inline(routine);
+    }
+
+    public synchronized void saveRoutines(List<Routine> routines) {
+        List<Routine> previous = getRoutines();
+        routines = internIcons(routines);
+        Map<String, Routine> previousById = new HashMap<>();
+        for (Routine r : previous) {
+            previousById.put(r.id, r);
+        }
+        try {
+            for (Routine r : routines) {
+                // Snapshot entries are never mutated, so an identical instance is already on disk
+                if (previousById.remove(r.id) != r) store.put(r);
+            }
+            for (String id : previousById.keySet()) {
+                store.remove(id);
+            }
+            if (!sameOrder(previous, routines)) store.writeOrder(routines);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving routines: " + e.getMessage());
+        }
+        publish(routines);
+    }
+
+    public synchronized void apply(Batch batch) {
+        if (batch.isEmpty()) return;
+        List<Routine> routines = new ArrayList<>(getRoutines());
+        for (Batch.Op op : batch.ops) {
+            switch (op.kind) {
+                case Batch.ADD:
+                    routines.add(0, op.routine);
+                    break;
+                case Batch.DELETE:
+                    routines.removeIf(r -> r.id.equals(op.id));
+                    break;
+                default:
+                    for (int i = 0; i < routines.size(); i++) {
+                        Routine r = routines.get(i);
+                        if (!r.id.equals(op.id) || r.enabled == op.enabled) continue;
+                        Routine copy = r.copy();
+                        copy.enabled = op.enabled;
+                        routines.set(i, copy);
+                    }
+                    break;
+            }
+        }
+        // Only routines that are new instances get written, so this costs what the edits touched
         saveRoutines(routines);
     }
 
-    public void toggleRoutine(String id, boolean enabled) {
+    // Every routine with its icons inline again, streamed one routine at a time; returns the count
+    public int exportRoutines(JsonWriter out) throws IOException {
         List<Routine> routines = getRoutines();
+        out.beginArray();
         for (Routine r : routines) {
+            RoutineCodec.write(out, icons.inline(r), null);
+        }
+        out.endArray();
+        return routines.size();
+    }
+
+    // Reads a bare routine array or an export object holding one under "routines". Each routine
+    // is validated, its icons stored as refs and its record staged as soon as it is read; an
+    // imported id replaces the routine holding it, and later repeats within the file are skipped.
+    // Nothing changes unless the whole file reads cleanly, and then it is one store swap and one revision.
+    public synchronized ImportResult importRoutines(JsonReader in) throws IOException {
+        List<Routine> merged = new ArrayList<>(getRoutines());
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < merged.size(); i++) {
+            positions.put(merged.get(i).id, i);
+        }
+        Set<String> imported = new HashSet<>();
+        // Routines whose icons were written out by this import; their blobs go if it does not commit
+        List<Routine> interned = new ArrayList<>();
+        ImportResult result = new ImportResult();
+        RoutineStore.Staging staging = store.stage();
+        boolean committed = false;
+        try {
+            if (in.peek() == JsonToken.BEGIN_OBJECT) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    if (in.nextName().equals("routines")) {
+                        readImport(in, staging, merged, positions, imported, interned, result);
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+            } else {
+                readImport(in, staging, merged, positions, imported, interned, result);
+            }
+            if (imported.isEmpty()) return result;
+            for (Routine r : merged) {
+                if (!imported.contains(r.id)) staging.put(r);
+            }
+            staging.commit(merged);
+            committed = true;
+        } finally {
+            if (!committed) {
+                staging.abort();
+                for (Routine r : interned) {
+                    icons.discard(r);
+                }
+            }
+        }
+        publish(merged);
+        return result;
+    }
+
+    private void readImport(JsonReader in, RoutineStore.Staging staging, List<Routine> merged,
+                            Map<String, Integer> positions, Set<String> imported, List<Routine> interned,
+                            ImportResult result) throws IOException {
+        in.beginArray();
+        for (int index = 0; in.hasNext(); index++) {
+            Routine r;
+            try {
+                r = RoutineCodec.read(in);
+            } catch (RuntimeException e) {
+                // The reader is mid-object and can't resume, so a malformed entry ends the import
+                throw new IOException("Malformed routine #" + index + ": " + e.getMessage());
+            }
+            String problem = invalidReason(r);
+            if (problem == null && !imported.add(r.id)) problem = "duplicate id";
+            if (problem != null) {
+                result.skipped++;
+                if (result.problems.size() < MAX_IMPORT_PROBLEMS) {
+                    result.problems.add("#" + index + (r != null && r.id != null ? " " + r.id : "") + ": " + problem);
+                }
+                continue;
+            }
+            Routine stored = icons.intern(r);
+            if (stored != r) interned.add(stored);
+            r = stored;
+            staging.put(r);
+            result.maxSeqId = Math.max(result.maxSeqId, r.seqId);
+            Integer at = positions.get(r.id);
+            if (at != null) {
+                merged.set(at, r);
+                result.replaced++;
+            } else {
+                positions.put(r.id, merged.size());
+                merged.add(r);
+                result.added++;
+            }
+        }
+        in.endArray();
+    }
+
+    // Why a routine from outside the app can't be used, or null when it can
+    private static String invalidReason(Routine r) {
+        if (r == null) return "empty entry";
+        if (r.id == null || r.id.isEmpty() || r.id.length() > MAX_ID_LENGTH) return "missing or oversized id";
+        if (r.apps == null || r.apps.isEmpty()) return "no apps";
+        for (Routine.AppInfo a : r.apps) {
+            if (a == null || a.pkg == null || a.pkg.isEmpty()) return "app without a package";
+        }
+        TriggerIndex.Cond cond = TriggerIndex.Cond.parse(r.cond);
+        if (cond == null) return "unknown condition " + r.cond;
+        if (cond == TriggerIndex.Cond.USED && (TriggerIndex.TimeMode.parse(r.timeMode) == null || r.dur <= 0)) {
+            return "usage rule without a duration";
+        }
+        if (Conditions.compile(r.when) == null) return "unreadable constraint";
+        return null;
+    }
+
+    public synchronized void addRoutine(Routine routine) {
+        List<Routine> routines = new ArrayList<>(getRoutines());
+        try {
+            routine = icons.intern(routine);
+        } catch (IOException e) {
+            Log.e(TAG, "Error storing routine icons: " + e.getMessage());
+        }
+        routines.add(0, routine);
+        try {
+            store.put(routine);
+            store.writeOrder(routines);
+        } catch (IOException e) {
+            Log.e(TAG, "Error adding routine: " + e.getMessage());
+        }
+        publish(routines);
+    }
+
+    public synchronized void deleteRoutine(String id) {
+        List<Routine> routines = new ArrayList<>(getRoutines());
+        if (!routines.removeIf(r -> r.id.equals(id))) return;
+        try {
+            store.writeOrder(routines);
+            store.remove(id);
+        } catch (IOException e) {
+            Log.e(TAG, "Error deleting routine: " + e.getMessage());
+        }
+        publish(routines);
+    }
+
+    public synchronized void toggleRoutine(String id, boolean enabled) {
+        List<Routine> routines = new ArrayList<>(getRoutines());
+        for (int i = 0; i < routines.size(); i++) {
+            Routine r = routines.get(i);
             if (r.id.equals(id)) {
-                r.enabled = enabled;
-                break;
+                // Readers may still hold the old snapshot, so swap in a copy instead of flipping the flag
+                Routine copy = r.copy();
+                copy.enabled = enabled;
+                routines.set(i, copy);
+                try {
+                    store.put(copy);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error toggling routine: " + e.getMessage());
+                }
+                publish(routines);
+                return;
             }
         }
-        saveRoutines(routines);
+    }
+
+    private void publish(List<Routine> routines) {
+        Snapshot previous = getSnapshot();
+        List<Routine> updated = Collections.unmodifiableList(new ArrayList<>(routines));
+        snapshot = new Snapshot(previous.revision + 1, updated);
+
+        Map<String, Routine> previousById = new HashMap<>();
+        for (Routine r : previous.routines) {
+            previousById.put(r.id, r);
+        }
+        List<Routine> upserted = new ArrayList<>();
+        List<Routine> replaced = new ArrayList<>();
+        for (Routine r : updated) {
+            Routine old = previousById.remove(r.id);
+            if (old == r) continue;
+            upserted.add(r);
+            if (old != null) replaced.add(old);
+        }
+        // Take the new references before dropping old ones so shared icons survive an edit
+        for (Routine r : upserted) {
+            icons.retain(r);
+        }
+        for (Routine r : replaced) {
+            icons.release(r);
+        }
+        for (Routine r : previousById.values()) {
+            icons.release(r);
+        }
+
+        for (OnRoutinesChangedListener l : listeners) {
+            l.onRoutinesChanged(updated);
+        }
+        if (deltaListeners.isEmpty()) return;
+
+        List<String> order = null;
+        if (!sameOrder(previous.routines, updated)) {
+            order = new ArrayList<>();
+            for (Routine r : updated) {
+                order.add(r.id);
+            }
+        }
+        Delta delta = new Delta(previous.revision, previous.revision + 1, upserted, new ArrayList<>(previousById.keySet()), order);
+        for (OnRoutineDeltaListener l : deltaListeners) {
+            l.onRoutineDelta(delta);
+        }
+    }
+
+    private static boolean sameOrder(List<Routine> a, List<Routine> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).id.equals(b.get(i).id)) return false;
+        }
+        return true;
+    }
+
+    private List<Routine> internIcons(List<Routine> routines) {
+        List<Routine> interned = new ArrayList<>(routines.size());
+        for (Routine r : routines) {
+            try {
+                interned.add(icons.intern(r));
+            } catch (IOException e) {
+                Log.e(TAG, "Error storing routine icons: " + e.getMessage());
+                interned.add(r);
+            }
+        }
+        return interned;
+    }
+
+    // One-time move of icons saved inline by earlier versions; a no-op once every routine holds refs
+    private List<Routine> migrateInlineIcons(List<Routine> routines) {
+        List<Routine> migrated = internIcons(routines);
+        for (int i = 0; i < migrated.size(); i++) {
+            if (migrated.get(i) == routines.get(i)) continue;
+            try {
+                store.put(migrated.get(i));
+            } catch (IOException e) {
+                Log.e(TAG, "Error migrating routine icons: " + e.getMessage());
+            }
+        }
+        return migrated;
+    }
+
+    // Earlier versions kept every routine in a single preferences string
+    private void migrateLegacyRoutines() {
+        if (!prefs.contains(KEY_ROUTINES)) return;
+        try {
+            if (!store.exists()) {
+                List<Routine> legacy = RoutineCodec.decodeList(prefs.getString(KEY_ROUTINES, "[]"));
+                for (Routine r : legacy) {
+                    store.put(r);
+                }
+                store.writeOrder(legacy);
+            }
+            prefs.edit().remove(KEY_ROUTINES).apply();
+        } catch (Exception e) {
+            Log.e(TAG, "Error migrating routines: " + e.getMessage());
+        }
     }
 
     public String getSettings() {
@@ -61,5 +518,8 @@ public class RoutineManager {
 
     public void saveSettings(String settingsJson) {
         prefs.edit().putString(KEY_SETTINGS, settingsJson).apply();
+        for (OnSettingsChangedListener l : settingsListeners) {
+            l.onSettingsChanged(settingsJson);
+        }
     }
 }
@@ -0,0 +1,234 @@
+package foz.cueaside.aa;
+
+import android.util.Log;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Turns confirmed foreground transitions into routine firings: matches triggers through
+ * the rule engine and keeps the session and daily-total timers. The service and the
+ * replay harness drive the same instance type, with real or virtual clocks.
+ * Worker thread only.
+ */
+class RoutineRunner implements RuleEngine.Actions {
+    private static final String TAG = "RoutineRunner";
+    // Deadlines further out than this wait on an alarm rather than an in-process wakeup
+    static final long NEAR_MS = 10 * 60 * 1000L;
+
+    interface Sink {
+        void onFire(Routine routine, String pkg, long time);
+    }
+
+    // Wall-clock time, for usage totals and time-of-day conditions
+    interface WallClock {
+        long currentTimeMillis();
+    }
+
+    private static final class FarTimer {
+        final TriggerIndex.Trigger trigger;
+        final String pkg;
+        final int kind;
+        final long due;
+
+        FarTimer(TriggerIndex.Trigger trigger, String pkg, int kind, long due) {
+            this.trigger = trigger;
+            this.pkg = pkg;
+            this.kind = kind;
+            this.due = due;
+        }
+    }
+
+    private final CueScheduler scheduler;
+    private final RuleEngine engine;
+    private final RuleEngine.UsageSource usage;
+    private final BudgetLedger budgets;
+    private final WallClock clock;
+    private final Sink sink;
+    private final PendingTimers durable; // null when replaying
+    private final Map<String, FarTimer> far = new HashMap<>();
+    private long alarmAt = Long.MAX_VALUE;
+    // Deadlines read back after a restart, held until the first transition says whether their app is still in front
+    private Map<String, PendingTimers.Pending> restored;
+
+    RoutineRunner(CueScheduler scheduler, RuleEngine.UsageSource usage, BudgetLedger budgets, WallClock clock,
+                  Sink sink) {
+        this(scheduler, usage, budgets, clock, sink, null);
+    }
+
+    RoutineRunner(CueScheduler scheduler, RuleEngine.UsageSource usage, BudgetLedger budgets, WallClock clock,
+                  Sink sink, PendingTimers durable) {
+        this.scheduler = scheduler;
+        this.engine = new RuleEngine(usage);
+        this.usage = usage;
+        this.budgets = budgets;
+        this.clock = clock;
+        this.sink = sink;
+        this.durable = durable;
+    }
+
+    void restore() {
+        if (durable == null) return;
+        restored = new HashMap<>();
+        for (PendingTimers.Pending p : durable.all()) {
+            restored.put(PendingTimers.key(p.routineId, p.pkg), p);
+        }
+    }
+
+    void onTransition(TriggerIndex index, String oldPkg, String newPkg, long time) {
+        try {
+            // Pending session and total checks only matter while their app stays in front
+            scheduler.cancelPackage(oldPkg);
+            cancelFar(oldPkg);
+            if (durable != null) durable.removePackage(oldPkg);
+            budgets.onTransition(index, newPkg, time);
+            engine.onTransition(index, oldPkg, newPkg, time, this);
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling app change: " + e.getMessage());
+        }
+        dropRestored();
+    }
+
+    // Seeds the app found in front at start-up; restored deadlines for it carry on, nothing fires as a launch
+    void onResume(TriggerIndex index, String pkg, long time) {
+        try {
+            budgets.onTransition(index, pkg, time);
+            engine.onResume(index, pkg, time, this);
+        } catch (Exception e) {
+            Log.e(TAG, "Error resuming app: " + e.getMessage());
+        }
+        dropRestored();
+    }
+
+    // The alarm for far deadlines went off; anything now near moves in-process
+    void onAlarm() {
+        long now = clock.currentTimeMillis();
+        alarmAt = Long.MAX_VALUE;
+        for (Iterator<FarTimer> it = far.values().iterator(); it.hasNext(); ) {
+            FarTimer f = it.next();
+            if (f.due - now > NEAR_MS) continue;
+            it.remove();
+            scheduleNear(f.trigger, f.pkg, f.kind, f.due - now);
+        }
+        rearmAlarm();
+    }
+
+    @Override
+    public void fire(TriggerIndex.Trigger t, String pkg) {
+        sink.onFire(t.routine, pkg, clock.currentTimeMillis());
+    }
+
+    @Override
+    public void startSession(TriggerIndex.Trigger t, String pkg) {
+        try {
+            long now = clock.currentTimeMillis();
+            // A session that outlived a service restart keeps its original start
+            PendingTimers.Pending p = takeRestored(t.routine.id, pkg);
+            long start = p != null && p.kind == PendingTimers.SESSION && p.due >= now - NEAR_MS ? p.sessionStart : now;
+            arm(t, pkg, PendingTimers.SESSION, start + t.durationMs, start);
+        } catch (Exception e) {
+            Log.e(TAG, "Error scheduling usage check: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void checkTotal(TriggerIndex.Trigger t, String pkg) {
+        try {
+            long now = clock.currentTimeMillis();
+            checkUsed(t, pkg, PendingTimers.TOTAL, usage.getTodayTotal(pkg, now), now);
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking total usage: " + e.getMessage());
+        }
+    }
+
+    // The group has one deadline, held under whichever of its apps is in front
+    @Override
+    public void checkBudget(TriggerIndex.Trigger t, String pkg) {
+        try {
+            long now = clock.currentTimeMillis();
+            checkUsed(t, pkg, PendingTimers.BUDGET, budgets.used(t.routine.id, now), now);
+        } catch (Exception e) {
+            Log.e(TAG, "Error checking shared budget: " + e.getMessage());
+        }
+    }
+
+    private void checkUsed(TriggerIndex.Trigger t, String pkg, int kind, long usedMs, long now) {
+        long thresholdMs = t.durationMs;
+        // Usage is recomputed from its source, so a restored deadline adds nothing
+        takeRestored(t.routine.id, pkg);
+
+        if (usedMs >= thresholdMs) {
+            if (durable != null) durable.remove(t.routine.id, pkg);
+            if (engine.matches(t, pkg, now)) fire(t, pkg);
+        } else {
+            // Schedule a check for when the threshold will be reached
+            long remainingMs = thresholdMs - usedMs;
+            arm(t, pkg, kind, now + remainingMs, now);
+        }
+    }
+
+    private void arm(TriggerIndex.Trigger t, String pkg, int kind, long due, long sessionStart) {
+        if (durable != null) durable.put(new PendingTimers.Pending(t.routine.id, pkg, kind, due, sessionStart));
+        long delay = due - clock.currentTimeMillis();
+        String key = PendingTimers.key(t.routine.id, pkg);
+        if (durable != null && delay > NEAR_MS) {
+            scheduler.cancel(t.routine.id, pkg);
+            far.put(key, new FarTimer(t, pkg, kind, due));
+            rearmAlarm();
+            return;
+        }
+        if (far.remove(key) != null) rearmAlarm();
+        scheduleNear(t, pkg, kind, delay);
+    }
+
+    private void scheduleNear(TriggerIndex.Trigger t, String pkg, int kind, long delay) {
+        scheduler.schedule(t.routine.id, pkg, delay, () -> expire(t, pkg, kind));
+    }
+
+    private void expire(TriggerIndex.Trigger t, String pkg, int kind) {
+        if (kind == PendingTimers.TOTAL) {
+            checkTotal(t, pkg);
+            return;
+        }
+        if (kind == PendingTimers.BUDGET) {
+            checkBudget(t, pkg);
+            return;
+        }
+        if (durable != null) durable.remove(t.routine.id, pkg);
+        if (engine.matches(t, pkg, clock.currentTimeMillis())) fire(t, pkg);
+    }
+
+    private void cancelFar(String pkg) {
+        boolean changed = false;
+        for (Iterator<FarTimer> it = far.values().iterator(); it.hasNext(); ) {
+            if (it.next().pkg.equals(pkg)) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) rearmAlarm();
+    }
+
+    private void rearmAlarm() {
+        long earliest = Long.MAX_VALUE;
+        for (FarTimer f : far.values()) {
+            earliest = Math.min(earliest, f.due - NEAR_MS);
+        }
+        if (earliest == alarmAt) return;
+        alarmAt = earliest;
+        durable.setAlarm(earliest);
+    }
+
+    private PendingTimers.Pending takeRestored(String routineId, String pkg) {
+        return restored != null ? restored.remove(PendingTimers.key(routineId, pkg)) : null;
+    }
+
+    // Whatever the first transition did not pick up belonged to an app that is no longer in front
+    private void dropRestored() {
+        if (restored == null) return;
+        for (PendingTimers.Pending p : restored.values()) {
+            durable.remove(p.routineId, p.pkg);
+        }
+        restored = null;
+    }
+}
@@ -0,0 +1,188 @@
+package foz.cueaside.aa;
+
+import android.util.Log;
+import androidx.core.util.AtomicFile;
+import com.google.gson.stream.JsonReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One file per routine plus a small ordering file, so changing a routine rewrites
+ * that routine only and adding or deleting one rewrites the id list, never the
+ * whole routine set. Bulk imports instead build a complete replacement next to it
+ * and swap it in with a directory rename.
+ */
+class RoutineStore {
+    private static final String TAG = "RoutineStore";
+    private static final String DIR_NAME = "routines";
+    private static final String ORDER_FILE = "order";
+    private static final String RECORD_SUFFIX = ".json";
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String RETIRED_SUFFIX = ".old";
+
+    private final File dir;
+    private final AtomicFile orderFile;
+
+    RoutineStore(File filesDir) {
+        this(new File(filesDir, DIR_NAME), true);
+    }
+
+    private RoutineStore(File dir, boolean recover) {
+        this.dir = dir;
+        this.orderFile = new AtomicFile(new File(dir, ORDER_FILE));
+        if (recover) recover();
+    }
+
+    // A full replacement of the store, written one routine at a time and invisible until commit()
+    final class Staging {
+        private final RoutineStore target = new RoutineStore(sibling(STAGING_SUFFIX), false);
+
+        void put(Routine routine) throws IOException {
+            target.put(routine);
+        }
+
+        // The order file goes in last, so a staging directory that has one is complete
+        void commit(List<Routine> routines) throws IOException {
+            target.writeOrder(routines);
+            File retired = sibling(RETIRED_SUFFIX);
+            if (retired.exists()) {
+                // Left over from an earlier swap; only garbage while the live tree is whole
+                if (!isComplete(dir)) throw new IOException("Previous routines not restored yet");
+                deleteTree(retired);
+            }
+            if (dir.exists() && !dir.renameTo(retired)) throw new IOException("Cannot retire " + dir);
+            if (!target.dir.renameTo(dir)) {
+                // Whatever is left is put back by recover() on the next start
+                if (retired.exists() && !retired.renameTo(dir)) Log.e(TAG, "Could not restore " + dir);
+                throw new IOException("Cannot install " + target.dir);
+            }
+            deleteTree(retired);
+        }
+
+        void abort() {
+            deleteTree(target.dir);
+        }
+    }
+
+    Staging stage() {
+        deleteTree(sibling(STAGING_SUFFIX));
+        return new Staging();
+    }
+
+    boolean exists() {
+        return orderFile.getBaseFile().exists();
+    }
+
+    List<Routine> loadAll() {
+        List<Routine> routines = new ArrayList<>();
+        for (String id : readOrder()) {
+            try (JsonReader in = new JsonReader(new InputStreamReader(record(id).openRead(), StandardCharsets.UTF_8))) {
+                in.setLenient(true);
+                Routine r = RoutineCodec.read(in);
+                if (r != null) routines.add(r);
+            } catch (Exception e) {
+                Log.e(TAG, "Error reading routine " + id + ": " + e.getMessage());
+            }
+        }
+        return routines;
+    }
+
+    void put(Routine routine) throws IOException {
+        write(record(routine.id), RoutineCodec.encode(routine));
+    }
+
+    void remove(String id) {
+        record(id).delete();
+    }
+
+    void writeOrder(List<Routine> routines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Routine r : routines) {
+            sb.append(r.id).append('\n');
+        }
+        write(orderFile, sb.toString());
+    }
+
+    private List<String> readOrder() {
+        List<String> ids = new ArrayList<>();
+        if (!exists()) return ids;
+        try {
+            String content = new String(orderFile.readFully(), StandardCharsets.UTF_8);
+            for (String line : content.split("\n")) {
+                if (!line.isEmpty()) ids.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading routine order: " + e.getMessage());
+        }
+        return ids;
+    }
+
+    private AtomicFile record(String id) {
+        return new AtomicFile(new File(dir, fileName(id) + RECORD_SUFFIX));
+    }
+
+    private void write(AtomicFile file, String content) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        FileOutputStream out = file.startWrite();
+        try {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(out);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        }
+    }
+
+    // Finishes or undoes a swap that was cut short by the process dying. Nothing is
+    // deleted until the live tree is back in place and complete.
+    private void recover() {
+        File staging = sibling(STAGING_SUFFIX);
+        File retired = sibling(RETIRED_SUFFIX);
+        if (!dir.exists()) {
+            // Between the two renames: the staged tree was complete, else the old one goes back
+            if (isComplete(staging) && staging.renameTo(dir)) {
+                Log.w(TAG, "Completed interrupted routine import");
+            } else if (retired.exists() && retired.renameTo(dir)) {
+                Log.w(TAG, "Restored routines after an interrupted import");
+            }
+        }
+        if (!isComplete(dir)) return;
+        deleteTree(staging);
+        deleteTree(retired);
+    }
+
+    private static boolean isComplete(File dir) {
+        return new File(dir, ORDER_FILE).exists();
+    }
+
+    private File sibling(String suffix) {
+        return new File(dir.getParentFile(), dir.getName() + suffix);
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        if (file.exists() && !file.delete()) Log.w(TAG, "Could not delete " + file);
+    }
+
+    // Routine ids come from the front end; anything that isn't filename-safe is hex encoded
+    static String fileName(String id) {
+        if (id.matches("[A-Za-z0-9_-]+")) return id;
+        StringBuilder sb = new StringBuilder("~");
+        for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package foz.cueaside.aa;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Evaluates the compiled triggers of a {@link TriggerIndex} against foreground
+ * transitions. One event record is reused for every transition and trigger arrays are
+ * walked in place, so once every package has been seen a transition allocates nothing.
+ * Worker thread only.
+ */
+final class RuleEngine {
+    static final long LAUNCH_WINDOW_MS = 60 * 60 * 1000L;
+    // Launches kept per package; a launch-count condition can ask for at most this many
+    static final int LAUNCH_HISTORY = 32;
+
+    // Extra requirements a routine can carry on top of its launch/exit/usage trigger
+    interface Condition {
+        boolean test(Event e);
+    }
+
+    interface UsageSource {
+        long getTodayTotal(String pkg, long now);
+    }
+
+    interface Actions {
+        void fire(TriggerIndex.Trigger t, String pkg);
+        void startSession(TriggerIndex.Trigger t, String pkg);
+        void checkTotal(TriggerIndex.Trigger t, String pkg);
+        void checkBudget(TriggerIndex.Trigger t, String pkg);
+    }
+
+    // The transition being evaluated; pkg is the package the current trigger watches
+    static final class Event {
+        String oldPkg;
+        String newPkg;
+        String pkg;
+        long time;
+        int minuteOfDay;
+        int dayOfWeek;
+        private RuleEngine engine;
+
+        int launchesWithin(String pkg, long windowMs) {
+            LaunchLog log = engine.launches.get(pkg);
+            return log != null ? log.countSince(time - windowMs) : 0;
+        }
+
+        long todayTotal(String pkg) {
+            return engine.usage.getTodayTotal(pkg, time);
+        }
+    }
+
+    private static final class LaunchLog {
+        final long[] times = new long[LAUNCH_HISTORY];
+        int next;
+        int size;
+
+        void add(long time) {
+            times[next] = time;
+            next = (next + 1) % times.length;
+            if (size < times.length) size++;
+        }
+
+        int countSince(long since) {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (times[i] >= since) count++;
+            }
+            return count;
+        }
+    }
+
+    private final UsageSource usage;
+    private final Event event = new Event();
+    private final Calendar calendar = Calendar.getInstance();
+    private final Map<String, LaunchLog> launches = new HashMap<>();
+    private long minuteStart = Long.MIN_VALUE;
+
+    RuleEngine(UsageSource usage) {
+        this.usage = usage;
+        event.engine = this;
+    }
+
+    // Single pass over the triggers of both packages involved in the transition
+    void onTransition(TriggerIndex index, String oldPkg, String newPkg, long time, Actions actions) {
+        recordLaunch(newPkg, time);
+        prepare(oldPkg, newPkg, time);
+
+        TriggerIndex.Bucket entered = index.bucket(newPkg);
+        event.pkg = newPkg;
+        for (TriggerIndex.Trigger t : entered.launched) {
+            if (t.matches(event)) actions.fire(t, newPkg);
+        }
+        startUsage(entered, newPkg, actions);
+
+        event.pkg = oldPkg;
+        for (TriggerIndex.Trigger t : index.bucket(oldPkg).exiting) {
+            if (t.matches(event)) actions.fire(t, oldPkg);
+        }
+    }
+
+    // The app already in front when tracking starts: its usage triggers run, but it was not launched
+    void onResume(TriggerIndex index, String pkg, long time, Actions actions) {
+        prepare(null, pkg, time);
+        event.pkg = pkg;
+        startUsage(index.bucket(pkg), pkg, actions);
+    }
+
+    // Usage triggers check their conditions when the time is up, not on entry
+    private void startUsage(TriggerIndex.Bucket bucket, String pkg, Actions actions) {
+        for (TriggerIndex.Trigger t : bucket.used) {
+            if (t.timeMode == TriggerIndex.TimeMode.SESSION) {
+                actions.startSession(t, pkg);
+            } else if (t.timeMode == TriggerIndex.TimeMode.SHARED) {
+                actions.checkBudget(t, pkg);
+            } else {
+                actions.checkTotal(t, pkg);
+            }
+        }
+    }
+
+    boolean matches(TriggerIndex.Trigger t, String pkg, long time) {
+        prepare(event.oldPkg, event.newPkg, time);
+        event.pkg = pkg;
+        return t.matches(event);
+    }
+
+    private void recordLaunch(String pkg, long time) {
+        if (pkg == null || pkg.isEmpty()) return;
+        LaunchLog log = launches.get(pkg);
+        if (log == null) {
+            log = new LaunchLog();
+            launches.put(pkg, log);
+        }
+        log.add(time);
+    }
+
+    private void prepare(String oldPkg, String newPkg, long time) {
+        event.oldPkg = oldPkg;
+        event.newPkg = newPkg;
+        event.time = time;
+        // Local clock fields only change once a minute
+        if (time < minuteStart || time >= minuteStart + 60 * 1000L) {
+            calendar.setTimeInMillis(time);
+            event.minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+            event.dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+            minuteStart = time - calendar.get(Calendar.SECOND) * 1000L - calendar.get(Calendar.MILLISECOND);
+        }
+    }
+}
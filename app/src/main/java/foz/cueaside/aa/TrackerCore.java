@@ -0,0 +1,250 @@
+package foz.cueaside.aa;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodManager;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything between "this app came to the front" and a fired routine: the settle
+ * filter, usage totals, the journal and routine timers, all on one worker thread.
+ * A tracker backend ({@link Source}) feeds it; only one core runs at a time.
+ */
+class TrackerCore implements RoutineManager.OnRoutinesChangedListener,
+        RoutineManager.OnSettingsChangedListener, EventPipeline.Sink {
+    private static final String TAG = "TrackerCore";
+
+    // Where foreground changes come from; the accessibility service or UsageEvents polling
+    interface Source {
+        // On the calling thread of start(); transitions go to core.input() on core.worker()
+        void start(TrackerCore core);
+        // Any thread, whenever the routines being evaluated change
+        void onIndexChanged(TriggerIndex index);
+        // Worker thread, after each confirmed foreground change
+        void onForeground(String packageName);
+        void stop();
+    }
+
+    private static volatile TrackerCore active;
+
+    private final Context context;
+    private final String name;
+    private final Source source;
+    private RoutineManager routineManager;
+    private volatile TriggerIndex triggerIndex = TriggerIndex.EMPTY;
+    // The journal needs every switch between apps; with history off the source may narrow its events
+    private volatile boolean history = true;
+    // Owned by the worker thread: transitions, timers and rule evaluation all run there
+    private String lastPackageName = "";
+    private long lastTime;
+    private HandlerThread workerThread;
+    private volatile Handler worker;
+    private ForegroundTracker foregroundTracker;
+    private CueScheduler scheduler;
+    private UsageAccumulator usageAccumulator;
+    private BudgetLedger budgets;
+    private RoutineRunner runner;
+    private UsageJournal journal;
+
+    TrackerCore(Context context, String name, Source source) {
+        this.context = context;
+        this.name = name;
+        this.source = source;
+    }
+
+    // Name of the backend feeding the running core, or null when nothing is tracking
+    static String getActiveBackend() {
+        TrackerCore c = active;
+        return c != null ? c.name : null;
+    }
+
+    public static int getPendingTimerCount() {
+        TrackerCore c = active;
+        return c != null ? c.scheduler.size() : 0;
+    }
+
+    // Far deadlines wait on an alarm; it lands here through BootReceiver. False when no core is running
+    static boolean onTimerAlarm() {
+        TrackerCore c = active;
+        Handler w = c != null ? c.worker : null;
+        if (w == null) return false;
+        w.post(c.runner::onAlarm);
+        return true;
+    }
+
+    void start() {
+        routineManager = RoutineManager.getInstance(context);
+        triggerIndex = TriggerIndex.build(routineManager.getRoutines());
+        routineManager.addOnRoutinesChangedListener(this);
+        workerThread = new HandlerThread("CueAsideWorker");
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper());
+        scheduler = CueScheduler.create(workerThread.getLooper());
+        foregroundTracker = new ForegroundTracker(worker, this);
+        onSettingsChanged(routineManager.getSettings());
+        routineManager.addOnSettingsChangedListener(this);
+        usageAccumulator = new UsageAccumulator(context);
+        journal = UsageJournal.getInstance(context);
+        budgets = new BudgetLedger(usageAccumulator::getGroupTotal);
+        runner = new RoutineRunner(scheduler, usageAccumulator::getTodayTotal, budgets, System::currentTimeMillis,
+                this::onFire, PendingTimers.getInstance(context));
+        // Before any transition is queued, so the first one can pick restored deadlines back up
+        worker.post(runner::restore);
+        worker.post(() -> usageAccumulator.start(System.currentTimeMillis()));
+        worker.post(() -> NotificationHelper.prepare(context, routineManager.getRoutines()));
+
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenFilter.addAction(Intent.ACTION_USER_PRESENT);
+        context.registerReceiver(screenReceiver, screenFilter, null, worker);
+        active = this;
+        source.onIndexChanged(triggerIndex);
+        source.start(this);
+    }
+
+    void stop() {
+        if (workerThread == null) return;
+        source.stop();
+        if (active == this) active = null;
+        routineManager.removeOnRoutinesChangedListener(this);
+        routineManager.removeOnSettingsChangedListener(this);
+        context.unregisterReceiver(screenReceiver);
+        scheduler.clear();
+        worker.post(usageAccumulator::persist);
+        // Tracking stops here, so nothing after this counts as foreground time
+        worker.post(() -> {
+            journal.recordPause(System.currentTimeMillis());
+            journal.flush();
+        });
+        workerThread.quitSafely();
+        workerThread = null;
+    }
+
+    Handler worker() {
+        return worker;
+    }
+
+    // Whether the usage journal is recording, so every foreground change has to be seen
+    boolean keepsHistory() {
+        return history;
+    }
+
+    // Raw foreground changes, before the settle filter; worker thread only
+    EventPipeline.Sink input() {
+        return foregroundTracker;
+    }
+
+    // Uptime of the next session or total check, Long.MAX_VALUE when none is pending
+    long nextTimerUptime() {
+        return scheduler.nextDue();
+    }
+
+    // Window changes stop while the screen is off, so pause the running session explicitly
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            long now = System.currentTimeMillis();
+            if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                usageAccumulator.onForegroundChanged(null, now);
+                budgets.onForeground(null, now);
+                journal.recordPause(now);
+                journal.flush();
+            } else {
+                usageAccumulator.onForegroundChanged(lastPackageName, now);
+                budgets.onForeground(lastPackageName, now);
+                if (history) journal.recordResume(lastPackageName, now);
+            }
+        }
+    };
+
+    @Override
+    public void onRoutinesChanged(List<Routine> routines) {
+        TriggerIndex index = TriggerIndex.build(routines);
+        triggerIndex = index;
+        source.onIndexChanged(index);
+        Handler w = worker;
+        if (w != null) w.post(() -> NotificationHelper.prepare(context, routines));
+    }
+
+    // Optional "settleMs" and "ignoredPackages" settings tune the foreground tracker;
+    // "usageHistory": false stops the journal and lets the source see fewer events
+    @Override
+    public void onSettingsChanged(String settingsJson) {
+        NotificationHelper.invalidateChannels();
+        long settleMs = ForegroundTracker.DEFAULT_SETTLE_MS;
+        List<String> ignored = new ArrayList<>();
+        boolean keepHistory = true;
+        try {
+            JsonObject settings = JsonParser.parseString(settingsJson).getAsJsonObject();
+            if (settings.has("settleMs")) settleMs = settings.get("settleMs").getAsLong();
+            if (settings.has("usageHistory")) keepHistory = settings.get("usageHistory").getAsBoolean();
+            if (settings.has("ignoredPackages")) {
+                for (JsonElement e : settings.getAsJsonArray("ignoredPackages")) {
+                    ignored.add(e.getAsString());
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading tracker settings: " + e.getMessage());
+        }
+        // Keyboards draw over the app being typed into
+        try {
+            InputMethodManager imm = (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+            for (InputMethodInfo info : imm.getEnabledInputMethodList()) {
+                ignored.add(info.getPackageName());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing input methods: " + e.getMessage());
+        }
+        foregroundTracker.configure(settleMs, ignored);
+        if (keepHistory != history) setHistory(keepHistory);
+    }
+
+    private void setHistory(boolean keep) {
+        history = keep;
+        Handler w = worker;
+        // Switches may go unseen from here on, so nothing after now is charged to the app in front.
+        // Turning it back on records from the next switch, the first one known to be right
+        if (!keep && w != null) w.post(() -> journal.recordPause(System.currentTimeMillis()));
+        source.onIndexChanged(triggerIndex);
+    }
+
+    @Override
+    public void onTransition(String packageName, long time) {
+        if (packageName.equals(lastPackageName)) return;
+        // Polled events can trail what was already recorded; keep the journal in order
+        time = Math.max(time, lastTime);
+        usageAccumulator.onForegroundChanged(packageName, time);
+        if (history) journal.recordForeground(packageName, time);
+        runner.onTransition(triggerIndex, lastPackageName, packageName, time);
+        lastPackageName = packageName;
+        lastTime = time;
+        source.onForeground(packageName);
+    }
+
+    // The app already in front when tracking starts. It is timed from now and its usage
+    // triggers pick up, but it is no launch and the time before now was already counted.
+    void resume(String packageName, long time) {
+        if (packageName.equals(lastPackageName) || !foregroundTracker.seed(packageName)) return;
+        time = Math.max(time, lastTime);
+        usageAccumulator.onForegroundChanged(packageName, time);
+        if (history) journal.recordResume(packageName, time);
+        runner.onResume(triggerIndex, packageName, time);
+        lastPackageName = packageName;
+        lastTime = time;
+        source.onForeground(packageName);
+    }
+
+    private void onFire(Routine routine, String pkg, long time) {
+        NotificationHelper.showNotification(context, routine);
+        if (history) journal.recordFired(routine.id, pkg, time);
+    }
+}
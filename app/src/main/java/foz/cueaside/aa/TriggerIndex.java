@@ -0,0 +1,183 @@
+package foz.cueaside.aa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable lookup of enabled routines by the package they watch, so an app switch
+ * costs a lookup for the new package and one for the old package instead of a scan
+ * over every routine and app.
+ */
+public final class TriggerIndex {
+    public static final TriggerIndex EMPTY = new TriggerIndex(Collections.emptyMap(), new Trigger[0]);
+
+    public enum Cond {
+        LAUNCHED, EXITING, USED;
+
+        static Cond parse(String value) {
+            if ("launched".equals(value)) return LAUNCHED;
+            if ("exiting".equals(value)) return EXITING;
+            if ("used".equals(value)) return USED;
+            return null;
+        }
+    }
+
+    public enum Unit {
+        SECONDS(1000L), MINUTES(60 * 1000L), HOURS(60 * 60 * 1000L);
+
+        final long millis;
+
+        Unit(long millis) {
+            this.millis = millis;
+        }
+
+        static Unit parse(String value) {
+            if ("h".equals(value)) return HOURS;
+            if ("s".equals(value)) return SECONDS;
+            return MINUTES;
+        }
+    }
+
+    // SHARED is one budget over all of the routine's apps together; see BudgetLedger
+    public enum TimeMode {
+        SESSION, TOTAL, SHARED;
+
+        static TimeMode parse(String value) {
+            if ("session".equals(value)) return SESSION;
+            if ("total".equals(value)) return TOTAL;
+            if ("shared".equals(value)) return SHARED;
+            return null;
+        }
+    }
+
+    public static final class Trigger {
+        public final Routine routine;
+        public final Cond cond;
+        public final Unit unit;
+        public final TimeMode timeMode;
+        public final long durationMs;
+        final RuleEngine.Condition[] conditions;
+
+        Trigger(Routine routine, Cond cond, Unit unit, TimeMode timeMode, RuleEngine.Condition[] conditions) {
+            this.routine = routine;
+            this.cond = cond;
+            this.unit = unit;
+            this.timeMode = timeMode;
+            this.durationMs = routine.dur * unit.millis;
+            this.conditions = conditions;
+        }
+
+        boolean matches(RuleEngine.Event e) {
+            for (RuleEngine.Condition c : conditions) {
+                if (!c.test(e)) return false;
+            }
+            return true;
+        }
+    }
+
+    static final class Bucket {
+        private static final Trigger[] NONE = new Trigger[0];
+        static final Bucket EMPTY = new Bucket(NONE, NONE, NONE);
+
+        final Trigger[] launched;
+        final Trigger[] exiting;
+        final Trigger[] used;
+
+        Bucket(Trigger[] launched, Trigger[] exiting, Trigger[] used) {
+            this.launched = launched;
+            this.exiting = exiting;
+            this.used = used;
+        }
+    }
+
+    private final Map<String, Bucket> byPackage;
+    private final Trigger[] budgets;
+
+    private TriggerIndex(Map<String, Bucket> byPackage, Trigger[] budgets) {
+        this.byPackage = byPackage;
+        this.budgets = budgets;
+    }
+
+    public static TriggerIndex build(List<Routine> routines) {
+        if (routines == null || routines.isEmpty()) return EMPTY;
+
+        Map<String, List<Trigger>> launched = new LinkedHashMap<>();
+        Map<String, List<Trigger>> exiting = new LinkedHashMap<>();
+        Map<String, List<Trigger>> used = new LinkedHashMap<>();
+        List<Trigger> budgets = new ArrayList<>();
+
+        for (Routine r : routines) {
+            if (r == null || !r.enabled || r.apps == null) continue;
+            Cond cond = Cond.parse(r.cond);
+            if (cond == null) continue;
+            TimeMode timeMode = TimeMode.parse(r.timeMode);
+            if (cond == Cond.USED && timeMode == null) continue;
+            RuleEngine.Condition[] conditions = Conditions.compile(r.when);
+            if (conditions == null) continue;
+
+            Trigger trigger = new Trigger(r, cond, Unit.parse(r.unit), timeMode, conditions);
+            if (cond == Cond.USED && timeMode == TimeMode.SHARED) budgets.add(trigger);
+            Map<String, List<Trigger>> target = cond == Cond.LAUNCHED ? launched : cond == Cond.EXITING ? exiting : used;
+            for (Routine.AppInfo app : r.apps) {
+                if (app == null || app.pkg == null) continue;
+                List<Trigger> list = target.get(app.pkg);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    target.put(app.pkg, list);
+                }
+                // A routine listing the same app twice must still fire once
+                if (list.isEmpty() || list.get(list.size() - 1) != trigger) list.add(trigger);
+            }
+        }
+
+        Map<String, Bucket> byPackage = new HashMap<>();
+        collect(byPackage, launched, Cond.LAUNCHED);
+        collect(byPackage, exiting, Cond.EXITING);
+        collect(byPackage, used, Cond.USED);
+        return new TriggerIndex(Collections.unmodifiableMap(byPackage), budgets.toArray(new Trigger[0]));
+    }
+
+    private static void collect(Map<String, Bucket> byPackage, Map<String, List<Trigger>> source, Cond cond) {
+        for (Map.Entry<String, List<Trigger>> e : source.entrySet()) {
+            Bucket current = byPackage.get(e.getKey());
+            if (current == null) current = Bucket.EMPTY;
+            Trigger[] triggers = e.getValue().toArray(new Trigger[0]);
+            switch (cond) {
+                case LAUNCHED:
+                    current = new Bucket(triggers, current.exiting, current.used);
+                    break;
+                case EXITING:
+                    current = new Bucket(current.launched, triggers, current.used);
+                    break;
+                default:
+                    current = new Bucket(current.launched, current.exiting, triggers);
+                    break;
+            }
+            byPackage.put(e.getKey(), current);
+        }
+    }
+
+    Set<String> packages() {
+        return byPackage.keySet();
+    }
+
+    // Usage triggers whose limit is shared across their apps
+    Trigger[] budgets() {
+        return budgets;
+    }
+
+    Bucket bucket(String pkg) {
+        if (pkg == null) return Bucket.EMPTY;
+        Bucket b = byPackage.get(pkg);
+        return b != null ? b : Bucket.EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return byPackage.isEmpty();
+    }
+}
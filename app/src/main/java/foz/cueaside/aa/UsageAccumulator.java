@@ -0,0 +1,185 @@
+package foz.cueaside.aa;
+
+import android.app.usage.UsageStats;
+import android.app.usage.UsageStatsManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running per-package foreground time for the current day, fed by the window changes
+ * the tracker already sees. UsageStats is only consulted when the tracker starts and
+ * to reconcile drift every few hours.
+ */
+class UsageAccumulator {
+    private static final String TAG = "UsageAccumulator";
+    private static final String PREF_NAME = "CueAsideUsage";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_TOTALS = "totals";
+    private static final long RECONCILE_INTERVAL_MS = 6 * 60 * 60 * 1000L;
+    // Bounds what a process killed without stop() loses when the system figures are unavailable
+    private static final long PERSIST_INTERVAL_MS = 5 * 60 * 1000L;
+    private static final Type TOTALS_TYPE = new TypeToken<HashMap<String, Long>>(){}.getType();
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final Gson gson = new Gson();
+    // long[1] cells so an update is a map lookup and an add, without boxing
+    private final Map<String, long[]> totals = new HashMap<>();
+
+    private long dayStart = -1;
+    private long nextDayStart;
+    private long lastReconcile;
+    private long lastPersist;
+    private String foregroundPkg;
+    private long foregroundSince;
+
+    UsageAccumulator(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    // The saved totals are only a floor: the process may have died long after they were written,
+    // so the day is reconciled with the system figures on every start
+    synchronized void start(long now) {
+        long today = startOfDay(now);
+        totals.clear();
+        if (prefs.getLong(KEY_DAY, -1) == today) {
+            Map<String, Long> saved = gson.fromJson(prefs.getString(KEY_TOTALS, "{}"), TOTALS_TYPE);
+            if (saved != null) {
+                for (Map.Entry<String, Long> e : saved.entrySet()) {
+                    totals.put(e.getKey(), new long[]{e.getValue()});
+                }
+            }
+        }
+        setDay(today);
+        reconcile(now);
+    }
+
+    synchronized void onForegroundChanged(String pkg, long now) {
+        advance(now);
+        foregroundPkg = pkg == null || pkg.isEmpty() ? null : pkg;
+        foregroundSince = now;
+    }
+
+    synchronized long getTodayTotal(String pkg, long now) {
+        advance(now);
+        long[] cell = totals.get(pkg);
+        long total = cell != null ? cell[0] : 0;
+        if (pkg.equals(foregroundPkg)) total += now - foregroundSince;
+        return total;
+    }
+
+    // Combined time of a group since a window start; today's part comes from the running totals,
+    // earlier days from one aggregate query. For seeding a budget, not for per-event use
+    synchronized long getGroupTotal(String[] pkgs, long since, long now) {
+        long total = 0;
+        for (String pkg : pkgs) {
+            total += getTodayTotal(pkg, now);
+        }
+        if (since >= dayStart) return total;
+        long start = Diagnostics.begin(Diagnostics.USAGE_QUERY);
+        try {
+            UsageStatsManager usm = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
+            Map<String, UsageStats> stats = usm.queryAndAggregateUsageStats(since, dayStart);
+            if (stats == null) return total;
+            for (String pkg : pkgs) {
+                UsageStats s = stats.get(pkg);
+                if (s != null) total += s.getTotalTimeInForeground();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying group usage: " + e.getMessage());
+        } finally {
+            Diagnostics.end(Diagnostics.USAGE_QUERY, start);
+        }
+        return total;
+    }
+
+    synchronized void persist() {
+        lastPersist = System.currentTimeMillis();
+        Map<String, Long> out = new HashMap<>();
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            out.put(e.getKey(), e.getValue()[0]);
+        }
+        prefs.edit().putLong(KEY_DAY, dayStart).putString(KEY_TOTALS, gson.toJson(out)).apply();
+    }
+
+    private void advance(long now) {
+        if (dayStart < 0) start(now);
+        if (now >= nextDayStart) {
+            // Credit the open session up to midnight, close the day, and carry the session over
+            credit(nextDayStart);
+            persist();
+            totals.clear();
+            setDay(startOfDay(now));
+            if (foregroundPkg != null) foregroundSince = dayStart;
+        }
+        if (now - lastReconcile >= RECONCILE_INTERVAL_MS) {
+            // The system figure already covers the open session up to now
+            credit(now);
+            reconcile(now);
+        } else if (now - lastPersist >= PERSIST_INTERVAL_MS) {
+            credit(now);
+            persist();
+        }
+    }
+
+    private void credit(long until) {
+        if (foregroundPkg == null || until <= foregroundSince) return;
+        long[] cell = totals.get(foregroundPkg);
+        if (cell == null) {
+            cell = new long[1];
+            totals.put(foregroundPkg, cell);
+        }
+        cell[0] += until - foregroundSince;
+        foregroundSince = until;
+    }
+
+    // One aggregate query; the system figure wins where it is available
+    private void reconcile(long now) {
+        lastReconcile = now;
+        long start = Diagnostics.begin(Diagnostics.USAGE_QUERY);
+        try {
+            UsageStatsManager usm = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
+            Map<String, UsageStats> stats = usm.queryAndAggregateUsageStats(dayStart, now);
+            if (stats == null) return;
+            for (Map.Entry<String, UsageStats> e : stats.entrySet()) {
+                long[] cell = totals.get(e.getKey());
+                if (cell == null) {
+                    cell = new long[1];
+                    totals.put(e.getKey(), cell);
+                }
+                cell[0] = e.getValue().getTotalTimeInForeground();
+            }
+            persist();
+        } catch (Exception e) {
+            Log.e(TAG, "Error reconciling usage: " + e.getMessage());
+        } finally {
+            Diagnostics.end(Diagnostics.USAGE_QUERY, start);
+        }
+    }
+
+    private void setDay(long start) {
+        dayStart = start;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(start);
+        calendar.add(Calendar.DAY_OF_YEAR, 1);
+        nextDayStart = calendar.getTimeInMillis();
+    }
+
+    static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+}
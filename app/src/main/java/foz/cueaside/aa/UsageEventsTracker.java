@@ -0,0 +1,125 @@
+package foz.cueaside.aa;
+
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Tracker backend for when the accessibility service is off. Each poll reads only the
+ * UsageEvents recorded since a saved cursor, and polls come quickly while a watched app
+ * is in front or a timer is close, slowly otherwise. Worker thread only.
+ */
+class UsageEventsTracker implements TrackerCore.Source {
+    private static final String TAG = "UsageEventsTracker";
+    static final String BACKEND = "usageEvents";
+    private static final String PREF_NAME = "CueAsideTracker";
+    private static final String KEY_CURSOR = "cursor";
+    static final long FAST_POLL_MS = 2 * 1000L;
+    static final long SLOW_POLL_MS = 15 * 1000L;
+    // A timer due this soon gets fast polling, so a switch away is seen before it fires
+    private static final long DEADLINE_WINDOW_MS = 30 * 1000L;
+    // Bounds the first query when the cursor is old or missing
+    private static final long MAX_LOOKBACK_MS = 60 * 60 * 1000L;
+
+    private final SharedPreferences prefs;
+    private final UsageStatsManager usm;
+    private final Runnable onIdle;
+    private final UsageEvents.Event event = new UsageEvents.Event();
+    private final Runnable pollTask = this::poll;
+    private volatile TriggerIndex index = TriggerIndex.EMPTY;
+    private volatile Handler worker;
+    private TrackerCore core;
+    private long cursor;
+    private long savedCursor;
+    private boolean resumed;
+    private String foreground;
+
+    // onIdle runs when there is nothing left to watch
+    UsageEventsTracker(Context context, Runnable onIdle) {
+        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        this.usm = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
+        this.onIdle = onIdle;
+    }
+
+    @Override
+    public void start(TrackerCore core) {
+        this.core = core;
+        worker = core.worker();
+        worker.post(pollTask);
+    }
+
+    // Polling sees every foreground change already
+    @Override
+    public void onForeground(String packageName) {
+    }
+
+    @Override
+    public void onIndexChanged(TriggerIndex index) {
+        this.index = index;
+        if (index.isEmpty()) {
+            onIdle.run();
+            return;
+        }
+        // The poll interval depends on what is watched; work it out again now
+        Handler w = worker;
+        if (w != null) {
+            w.removeCallbacks(pollTask);
+            w.post(pollTask);
+        }
+    }
+
+    @Override
+    public void stop() {
+        Handler w = worker;
+        worker = null;
+        if (w != null) w.removeCallbacks(pollTask);
+    }
+
+    private void poll() {
+        long start = Diagnostics.begin(Diagnostics.USAGE_QUERY);
+        try {
+            long now = System.currentTimeMillis();
+            if (cursor == 0) {
+                savedCursor = prefs.getLong(KEY_CURSOR, 0);
+                cursor = Math.max(savedCursor, now - MAX_LOOKBACK_MS);
+            }
+            String latest = null;
+            UsageEvents events = usm.queryEvents(cursor, now);
+            while (events != null && events.getNextEvent(event)) {
+                long time = event.getTimeStamp();
+                if (time >= cursor) cursor = time + 1;
+                if (event.getEventType() != UsageEvents.Event.MOVE_TO_FOREGROUND) continue;
+                latest = event.getPackageName();
+                // The first poll only finds out what is in front now; the gap is not replayed
+                if (resumed) core.input().onTransition(latest, time);
+            }
+            // Stamped now: the time before it was counted when the totals were reconciled at start
+            if (!resumed && latest != null) core.resume(latest, now);
+            resumed = true;
+            if (latest != null) foreground = latest;
+            if (cursor != savedCursor) {
+                prefs.edit().putLong(KEY_CURSOR, cursor).apply();
+                savedCursor = cursor;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error polling usage events: " + e.getMessage());
+        } finally {
+            Diagnostics.end(Diagnostics.USAGE_QUERY, start);
+        }
+        Handler w = worker;
+        if (w != null) w.postDelayed(pollTask, nextInterval());
+    }
+
+    private long nextInterval() {
+        if (foreground != null) {
+            TriggerIndex.Bucket b = index.bucket(foreground);
+            if (b.launched.length > 0 || b.exiting.length > 0 || b.used.length > 0) return FAST_POLL_MS;
+        }
+        long untilTimer = core.nextTimerUptime() - SystemClock.uptimeMillis();
+        return untilTimer <= DEADLINE_WINDOW_MS ? FAST_POLL_MS : SLOW_POLL_MS;
+    }
+}
@@ -0,0 +1,439 @@
+package foz.cueaside.aa;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only record of foreground transitions and fired routines. Each local day is
+ * one memory-mapped segment of fixed-size records; package names and routine ids are
+ * stored once in a dictionary and referred to by index. Segments older than a week
+ * are folded into per-day rollups of foreground time, launches and firings.
+ */
+class UsageJournal {
+    private static final String TAG = "UsageJournal";
+    private static final String DIR_NAME = "journal";
+    private static final String DICT_FILE = "names";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ROLLUP_SUFFIX = ".roll";
+
+    // Segment layout: int magic, int record count, then records of
+    // long time, int package, int type, int routine
+    private static final int MAGIC = 0x43554a31;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 20;
+    private static final int MAX_RECORDS = 1 << 15;
+    private static final int SEGMENT_BYTES = HEADER_BYTES + RECORD_BYTES * MAX_RECORDS;
+    private static final int KEEP_SEGMENT_DAYS = 7;
+    private static final int NONE = -1;
+
+    static final int LAUNCH = 1;
+    // Foreground app restated at the start of a day or after the screen comes back; not a launch
+    static final int CARRY = 2;
+    static final int PAUSE = 3;
+    static final int FIRED = 4;
+
+    private static UsageJournal instance;
+
+    private final File dir;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<Long, ByteBuffer> segments = new HashMap<>();
+    private final Map<Long, Map<Integer, long[]>> rollups = new HashMap<>();
+    private boolean loaded;
+    // Earliest day with a segment or rollup on disk; nothing before it can hold records
+    private long oldestDay = Long.MAX_VALUE;
+    private long today = Long.MIN_VALUE;
+    private MappedByteBuffer current;
+    private int foreground = NONE;
+    // Per package for today: { launches, fired }
+    private final Map<Integer, int[]> todayCounts = new HashMap<>();
+    private boolean fullLogged;
+
+    static synchronized UsageJournal getInstance(Context context) {
+        if (instance == null) {
+            instance = new UsageJournal(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+
+    private UsageJournal(File filesDir) {
+        this.dir = new File(filesDir, DIR_NAME);
+    }
+
+    synchronized void recordForeground(String pkg, long time) {
+        if (!open(time)) return;
+        int id = id(pkg);
+        append(time, id, LAUNCH, NONE);
+        foreground = id;
+        counts(id)[0]++;
+    }
+
+    synchronized void recordPause(long time) {
+        if (!open(time)) return;
+        append(time, NONE, PAUSE, NONE);
+        foreground = NONE;
+    }
+
+    synchronized void recordResume(String pkg, long time) {
+        if (pkg == null || pkg.isEmpty() || !open(time)) return;
+        int id = id(pkg);
+        append(time, id, CARRY, NONE);
+        foreground = id;
+    }
+
+    synchronized void recordFired(String routineId, String pkg, long time) {
+        if (!open(time)) return;
+        int id = id(pkg);
+        append(time, id, FIRED, id(routineId));
+        counts(id)[1]++;
+    }
+
+    synchronized void flush() {
+        if (current != null) current.force();
+    }
+
+    // Foreground time of pkg within [t0, t1); days only kept as rollups are prorated
+    synchronized long foregroundTime(String pkg, long t0, long t1) {
+        long now = System.currentTimeMillis();
+        if (!open(now)) return 0;
+        Integer id = ids.get(pkg);
+        // The page can ask for any range; only the days actually on disk are walked
+        t0 = Math.max(t0, oldestDay);
+        t1 = Math.min(t1, nextDay(today));
+        if (id == null || t1 <= t0) return 0;
+        long total = 0;
+        for (long day = UsageAccumulator.startOfDay(t0); day < t1; day = nextDay(day)) {
+            long end = nextDay(day);
+            long from = Math.max(t0, day);
+            long to = Math.min(t1, end);
+            ByteBuffer seg = segment(day);
+            if (seg != null) {
+                total += scanForeground(seg, id, from, to, day == today ? now : end);
+                continue;
+            }
+            long[] rolled = rollup(day).get(id);
+            if (rolled != null) total += rolled[0] * (to - from) / (end - day);
+        }
+        return total;
+    }
+
+    synchronized int launchCountToday(String pkg, long now) {
+        if (!open(now)) return 0;
+        Integer id = ids.get(pkg);
+        int[] c = id != null ? todayCounts.get(id) : null;
+        return c != null ? c[0] : 0;
+    }
+
+    synchronized int firedCountToday(String pkg, long now) {
+        if (!open(now)) return 0;
+        Integer id = ids.get(pkg);
+        int[] c = id != null ? todayCounts.get(id) : null;
+        return c != null ? c[1] : 0;
+    }
+
+    // Opens the segment for the day of time, rolling over and compacting as needed
+    private boolean open(long time) {
+        try {
+            if (!loaded) {
+                loadNames();
+                findOldestDay();
+                loaded = true;
+            }
+            long day = UsageAccumulator.startOfDay(time);
+            if (day <= today && current != null) return true;
+
+            boolean fresh = !new File(dir, day + SEGMENT_SUFFIX).exists();
+            oldestDay = Math.min(oldestDay, day);
+            current = map(day, FileChannel.MapMode.READ_WRITE);
+            segments.put(day, current);
+            today = day;
+            recountToday();
+            if (fresh && foreground != NONE) append(day, foreground, CARRY, NONE);
+            compact();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening usage journal: " + e.getMessage());
+            current = null;
+            return false;
+        }
+    }
+
+    private void append(long time, int pkg, int type, int routine) {
+        int n = current.getInt(4);
+        if (n >= MAX_RECORDS) {
+            if (!fullLogged) Log.w(TAG, "Journal segment full, dropping records");
+            fullLogged = true;
+            return;
+        }
+        int at = HEADER_BYTES + n * RECORD_BYTES;
+        current.putLong(at, time);
+        current.putInt(at + 8, pkg);
+        current.putInt(at + 12, type);
+        current.putInt(at + 16, routine);
+        // Count last, so a record is only visible once it is complete
+        current.putInt(4, n + 1);
+    }
+
+    private MappedByteBuffer map(long day, FileChannel.MapMode mode) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File file = new File(dir, day + SEGMENT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            long size = mode == FileChannel.MapMode.READ_ONLY ? raf.length() : SEGMENT_BYTES;
+            MappedByteBuffer buf = raf.getChannel().map(mode, 0, size);
+            if (mode != FileChannel.MapMode.READ_ONLY && buf.getInt(0) != MAGIC) {
+                buf.putInt(4, 0);
+                buf.putInt(0, MAGIC);
+            }
+            return buf;
+        }
+    }
+
+    private ByteBuffer segment(long day) {
+        ByteBuffer seg = segments.get(day);
+        if (seg != null || !new File(dir, day + SEGMENT_SUFFIX).exists()) return seg;
+        try {
+            seg = map(day, FileChannel.MapMode.READ_ONLY);
+            if (seg.capacity() < HEADER_BYTES || seg.getInt(0) != MAGIC) return null;
+            segments.put(day, seg);
+            return seg;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading journal segment: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static long scanForeground(ByteBuffer seg, int pkg, long from, long to, long openEnd) {
+        int n = seg.getInt(4);
+        int i = firstAtOrAfter(seg, n, from);
+        // Whatever was in front when the range starts
+        int state = NONE;
+        for (int j = i - 1; j >= 0; j--) {
+            int type = seg.getInt(HEADER_BYTES + j * RECORD_BYTES + 12);
+            if (type == FIRED) continue;
+            state = type == PAUSE ? NONE : seg.getInt(HEADER_BYTES + j * RECORD_BYTES + 8);
+            break;
+        }
+        long since = from;
+        long total = 0;
+        for (; i < n; i++) {
+            int at = HEADER_BYTES + i * RECORD_BYTES;
+            long time = seg.getLong(at);
+            if (time >= to) break;
+            int type = seg.getInt(at + 12);
+            if (type == FIRED) continue;
+            if (state == pkg) total += time - since;
+            state = type == PAUSE ? NONE : seg.getInt(at + 8);
+            since = time;
+        }
+        long end = Math.min(to, openEnd);
+        if (state == pkg && end > since) total += end - since;
+        return total;
+    }
+
+    private static int firstAtOrAfter(ByteBuffer seg, int n, long time) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (seg.getLong(HEADER_BYTES + mid * RECORD_BYTES) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void recountToday() {
+        todayCounts.clear();
+        int n = current.getInt(4);
+        for (int i = 0; i < n; i++) {
+            int at = HEADER_BYTES + i * RECORD_BYTES;
+            int pkg = current.getInt(at + 8);
+            int type = current.getInt(at + 12);
+            if (type == LAUNCH) counts(pkg)[0]++;
+            if (type == FIRED) {
+                counts(pkg)[1]++;
+            } else {
+                // Picks up where a previous process left the day
+                foreground = type == PAUSE ? NONE : pkg;
+            }
+        }
+    }
+
+    private int[] counts(int pkg) {
+        int[] c = todayCounts.get(pkg);
+        if (c == null) {
+            c = new int[2];
+            todayCounts.put(pkg, c);
+        }
+        return c;
+    }
+
+    // Folds segments older than the retention window into rollups and deletes them
+    private void compact() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long cutoff = today;
+        for (int i = 0; i < KEEP_SEGMENT_DAYS; i++) {
+            cutoff = UsageAccumulator.startOfDay(cutoff - 1);
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+            long day;
+            try {
+                day = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (day >= cutoff) continue;
+            ByteBuffer seg = segment(day);
+            if (seg != null && !writeRollup(day, summarize(seg, day))) continue;
+            segments.remove(day);
+            if (!f.delete()) Log.w(TAG, "Could not delete journal segment " + name);
+        }
+    }
+
+    private static Map<Integer, long[]> summarize(ByteBuffer seg, long day) {
+        Map<Integer, long[]> summary = new HashMap<>();
+        long end = nextDay(day);
+        int n = seg.getInt(4);
+        int state = NONE;
+        long since = day;
+        for (int i = 0; i < n; i++) {
+            int at = HEADER_BYTES + i * RECORD_BYTES;
+            long time = seg.getLong(at);
+            int pkg = seg.getInt(at + 8);
+            int type = seg.getInt(at + 12);
+            if (type == LAUNCH) entry(summary, pkg)[1]++;
+            if (type == FIRED) {
+                entry(summary, pkg)[2]++;
+                continue;
+            }
+            if (state != NONE) entry(summary, state)[0] += time - since;
+            state = type == PAUSE ? NONE : pkg;
+            since = time;
+        }
+        if (state != NONE && end > since) entry(summary, state)[0] += end - since;
+        return summary;
+    }
+
+    private static long[] entry(Map<Integer, long[]> summary, int pkg) {
+        long[] e = summary.get(pkg);
+        if (e == null) {
+            e = new long[3];
+            summary.put(pkg, e);
+        }
+        return e;
+    }
+
+    // Rollup layout: int count, then per package int id, long foreground ms, long launches, long fired
+    private boolean writeRollup(long day, Map<Integer, long[]> summary) {
+        File file = new File(dir, day + ROLLUP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(summary.size());
+            for (Map.Entry<Integer, long[]> e : summary.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeLong(e.getValue()[0]);
+                out.writeLong(e.getValue()[1]);
+                out.writeLong(e.getValue()[2]);
+            }
+            rollups.put(day, summary);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing journal rollup: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Only rollups read from disk are cached; a day without one gives an empty map each time
+    private Map<Integer, long[]> rollup(long day) {
+        Map<Integer, long[]> summary = rollups.get(day);
+        if (summary != null) return summary;
+        File file = new File(dir, day + ROLLUP_SUFFIX);
+        if (!file.exists()) return Collections.emptyMap();
+        summary = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                summary.put(in.readInt(), new long[]{in.readLong(), in.readLong(), in.readLong()});
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading journal rollup: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+        rollups.put(day, summary);
+        return summary;
+    }
+
+    private void findOldestDay() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot <= 0 || !(name.endsWith(SEGMENT_SUFFIX) || name.endsWith(ROLLUP_SUFFIX))) continue;
+            try {
+                oldestDay = Math.min(oldestDay, Long.parseLong(name.substring(0, dot)));
+            } catch (NumberFormatException e) {
+                // Not a day file
+            }
+        }
+    }
+
+    private int id(String name) {
+        if (name == null) return NONE;
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        id = names.size();
+        try (FileOutputStream out = new FileOutputStream(new File(dir, DICT_FILE), true)) {
+            out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving journal name: " + e.getMessage());
+            return NONE;
+        }
+        names.add(name);
+        ids.put(name, id);
+        return id;
+    }
+
+    private void loadNames() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File file = new File(dir, DICT_FILE);
+        if (!file.exists()) return;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ids.put(line, names.size());
+                names.add(line);
+            }
+        }
+    }
+
+    private static long nextDay(long day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(day);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+}
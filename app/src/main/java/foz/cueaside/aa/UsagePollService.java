@@ -0,0 +1,64 @@
+package foz.cueaside.aa;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+import androidx.core.content.ContextCompat;
+
+/**
+ * Keeps the UsageEvents tracker running while the accessibility service is off. Polling
+ * needs a live process, so this runs in the foreground with a quiet ongoing notification.
+ */
+public class UsagePollService extends Service {
+    private static final String TAG = "UsagePollService";
+    private TrackerCore core;
+
+    // Only when accessibility can't track, usage access is granted and some routine is on
+    static void startIfNeeded(Context context) {
+        try {
+            if (TrackerCore.getActiveBackend() != null) return;
+            if (CueBridge.isAccessibilityEnabled(context) || !CueBridge.isUsageStatsEnabled(context)) return;
+            boolean anyEnabled = false;
+            for (Routine r : RoutineManager.getInstance(context).getRoutines()) {
+                anyEnabled |= r.enabled;
+            }
+            if (!anyEnabled) return;
+            ContextCompat.startForegroundService(context, new Intent(context, UsagePollService.class));
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting usage polling: " + e.getMessage());
+        }
+    }
+
+    static void stop(Context context) {
+        context.stopService(new Intent(context, UsagePollService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startForeground(NotificationHelper.TRACKING_NOTIFICATION_ID, NotificationHelper.buildTrackingNotification(this));
+        core = new TrackerCore(this, UsageEventsTracker.BACKEND, new UsageEventsTracker(this, this::stopSelf));
+        core.start();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (core != null) {
+            core.stop();
+            core = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
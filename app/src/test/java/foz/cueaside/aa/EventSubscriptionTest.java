@@ -0,0 +1,43 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.list;
+import static foz.cueaside.aa.TestRoutines.routine;
+import static foz.cueaside.aa.TestRoutines.used;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class EventSubscriptionTest {
+    private static final List<String> LAUNCHERS = Arrays.asList("launcher");
+
+    @Test
+    public void launchOnlyRoutinesAreScopedToTheirAppsAndTheLaunchers() {
+        EventSubscription s = EventSubscription.of(TriggerIndex.build(list(routine("l", "launched", "b", "a"))), LAUNCHERS);
+        assertFalse(s.isGlobal());
+        assertArrayEquals(new String[]{"a", "b", "launcher"}, s.packages);
+    }
+
+    @Test
+    public void exitsAndUsageNeedEveryPackage() {
+        assertSame(EventSubscription.GLOBAL, EventSubscription.of(
+                TriggerIndex.build(list(routine("l", "launched", "a"), routine("e", "exiting", "b"))), LAUNCHERS));
+        assertSame(EventSubscription.GLOBAL, EventSubscription.of(
+                TriggerIndex.build(list(used("u", "session", 5, "a"))), LAUNCHERS));
+        assertSame(EventSubscription.GLOBAL, EventSubscription.of(TriggerIndex.EMPTY, LAUNCHERS));
+    }
+
+    @Test
+    public void watchedAppInFrontWidensToEveryPackage() {
+        EventSubscription s = EventSubscription.of(TriggerIndex.build(list(routine("l", "launched", "a"))), LAUNCHERS);
+        // Leaving through recents or a notification lands in an app outside the scope
+        assertSame(EventSubscription.GLOBAL, s.whileInFront("a"));
+        assertSame(s, s.whileInFront("launcher"));
+        assertSame(s, s.whileInFront("other"));
+        assertSame(s, s.whileInFront(null));
+        assertSame(EventSubscription.GLOBAL, EventSubscription.GLOBAL.whileInFront("a"));
+    }
+}
@@ -0,0 +1,535 @@
+package foz.cueaside.aa;
+
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays window-change traces through {@link RoutineRunner} on a virtual clock and
+ * times the hot paths, producing a JSON report that can be compared across versions.
+ * Nothing here touches the notification shade or the real scheduler thread, so it runs
+ * as a plain JVM test; see {@link ReplayHarnessTest}.
+ */
+final class ReplayHarness {
+    static final int REPORT_VERSION = 6;
+    private static final int SYNTHETIC_PACKAGES = 40;
+    private static final int ICON_BYTES = 2 * 1024;
+    // Routines target apps from a wider pool than the trace visits, as most installed apps are idle
+    private static final int ROUTINE_PACKAGES = 200;
+    private static final int[] ROUTINE_COUNTS = {10, 100, 1000};
+    // Lookups per sample; one alone is below the timer's resolution
+    private static final int LOOKUP_BATCH = 64;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    // Keeps timed results observable so the work can't be optimised away
+    private static volatile int blackhole;
+
+    private ReplayHarness() {
+    }
+
+    static final class Step {
+        final long time;
+        final String pkg;
+
+        Step(long time, String pkg) {
+            this.time = time;
+            this.pkg = pkg;
+        }
+    }
+
+    static final class Fired {
+        final long time;
+        final String routineId;
+        final String pkg;
+
+        Fired(long time, String routineId, String pkg) {
+            this.time = time;
+            this.routineId = routineId;
+            this.pkg = pkg;
+        }
+    }
+
+    static final class Result {
+        final List<Fired> fired = new ArrayList<>();
+        long[] evalNanos;
+        int timersRun;
+    }
+
+    // Foreground switches with exponentially distributed dwell times, reproducible by seed
+    static List<Step> synthetic(int events, long start, long seed) {
+        Random random = new Random(seed);
+        List<Step> trace = new ArrayList<>(events);
+        long time = start;
+        String last = null;
+        for (int i = 0; i < events; i++) {
+            String pkg;
+            do {
+                // Skewed so a few apps dominate, as on a real phone
+                int n = (int) (SYNTHETIC_PACKAGES * Math.pow(random.nextDouble(), 2));
+                pkg = "com.example.app" + n;
+            } while (pkg.equals(last));
+            trace.add(new Step(time, pkg));
+            last = pkg;
+            time += 1000 + (long) (-Math.log(1 - random.nextDouble()) * 90 * 1000);
+        }
+        return trace;
+    }
+
+    // A launch, exit, session and daily-total routine on each of the busiest synthetic apps
+    static List<Routine> syntheticRoutines() {
+        List<Routine> routines = new ArrayList<>();
+        String[] conds = {"launched", "exiting", "used", "used"};
+        for (int i = 0; i < 8; i++) {
+            Routine r = new Routine();
+            r.id = "bench" + i;
+            r.enabled = true;
+            r.cond = conds[i % conds.length];
+            r.timeMode = i % conds.length == 3 ? "total" : "session";
+            r.dur = 2 + i;
+            r.unit = "m";
+            r.title = "Routine " + i;
+            r.msg = "Synthetic routine";
+            Routine.AppInfo app = new Routine.AppInfo();
+            app.pkg = "com.example.app" + i;
+            app.name = "App " + i;
+            r.apps = new ArrayList<>(Arrays.asList(app));
+            routines.add(r);
+        }
+        return routines;
+    }
+
+    static Result replay(List<Routine> routines, List<Step> trace) {
+        final long[] now = {trace.isEmpty() ? 0 : trace.get(0).time};
+        final long[] wakeAt = {Long.MAX_VALUE};
+        CueScheduler scheduler = new CueScheduler(() -> now[0], new CueScheduler.Waker() {
+            @Override
+            public void wakeAt(long uptimeMillis) {
+                wakeAt[0] = uptimeMillis;
+            }
+
+            @Override
+            public void cancel() {
+                wakeAt[0] = Long.MAX_VALUE;
+            }
+        });
+        VirtualUsage usage = new VirtualUsage();
+        Result result = new Result();
+        // The trace starts from nothing, so a budget first seen mid-trace has used what the trace shows
+        BudgetLedger budgets = new BudgetLedger((pkgs, since, time) -> {
+            long total = 0;
+            for (String pkg : pkgs) {
+                total += usage.getTodayTotal(pkg, time);
+            }
+            return total;
+        });
+        RoutineRunner runner = new RoutineRunner(scheduler, usage, budgets, () -> now[0],
+                (routine, pkg, time) -> result.fired.add(new Fired(time, routine.id, pkg)));
+        TriggerIndex index = TriggerIndex.build(routines);
+
+        result.evalNanos = new long[trace.size()];
+        String last = "";
+        for (int i = 0; i < trace.size(); i++) {
+            Step step = trace.get(i);
+            while (wakeAt[0] <= step.time) {
+                now[0] = wakeAt[0];
+                // One-shot like a posted message; runDue re-arms if anything is left
+                wakeAt[0] = Long.MAX_VALUE;
+                scheduler.runDue();
+                result.timersRun++;
+            }
+            now[0] = step.time;
+            usage.onForeground(step.pkg, step.time);
+            long t0 = System.nanoTime();
+            runner.onTransition(index, last, step.pkg, step.time);
+            result.evalNanos[i] = System.nanoTime() - t0;
+            last = step.pkg;
+        }
+        return result;
+    }
+
+    // Replay plus microbenchmarks, written as one JSON object
+    static String benchmark(List<Routine> routines, int events, long seed) throws IOException {
+        if (routines == null || routines.isEmpty()) routines = syntheticRoutines();
+        List<Step> trace = synthetic(events, 0, seed);
+        // Warm up so the timed pass measures compiled code
+        replay(routines, synthetic(Math.min(events, 2000), 0, seed + 1));
+        Result result = replay(routines, trace);
+
+        StringWriter sw = new StringWriter();
+        JsonWriter out = new JsonWriter(sw);
+        out.beginObject();
+        out.name("reportVersion").value(REPORT_VERSION);
+        out.name("seed").value(seed);
+        out.name("events").value(trace.size());
+        out.name("routines").value(routines.size());
+        out.name("fired").value(result.fired.size());
+        out.name("timersRun").value(result.timersRun);
+        Map<String, Integer> byRoutine = new HashMap<>();
+        for (Fired f : result.fired) {
+            Integer n = byRoutine.get(f.routineId);
+            byRoutine.put(f.routineId, n == null ? 1 : n + 1);
+        }
+        out.name("firedByRoutine").beginObject();
+        for (Map.Entry<String, Integer> e : byRoutine.entrySet()) {
+            out.name(e.getKey()).value(e.getValue());
+        }
+        out.endObject();
+        writePercentiles(out, "evaluationNs", result.evalNanos);
+        timeStore(out, routines);
+        timeCodec(out, scaledRoutines(100));
+        timeToggle(out);
+        timeTriggerLookup(out, trace);
+        writePercentiles(out, "iconEncodeNs", timeIconEncode(seed));
+        // What timing an empty section adds to each evaluationNs sample
+        writePercentiles(out, "emptySpanNs", timeEmptySpan());
+        out.endObject();
+        return sw.toString();
+    }
+
+    // n routines of each condition in turn, two apps each
+    static List<Routine> scaledRoutines(int n) {
+        List<Routine> routines = new ArrayList<>(n);
+        String[] conds = {"launched", "exiting", "used"};
+        for (int i = 0; i < n; i++) {
+            Routine r = new Routine();
+            r.id = "scaled" + i;
+            r.enabled = true;
+            r.cond = conds[i % conds.length];
+            r.timeMode = "session";
+            r.dur = 5;
+            r.unit = "m";
+            r.title = "Routine " + i;
+            r.msg = "Scaled routine";
+            r.apps = new ArrayList<>();
+            for (int j = 0; j < 2; j++) {
+                Routine.AppInfo app = new Routine.AppInfo();
+                int k = (i * 7 + j * 13) % ROUTINE_PACKAGES;
+                app.pkg = "com.example.app" + k;
+                app.name = "App " + k;
+                r.apps.add(app);
+            }
+            routines.add(r);
+        }
+        return routines;
+    }
+
+    // Finding the triggers of one foreground change: the index against the scan over every
+    // routine and app that handleAppChange did before it. Both count the same matches.
+    private static void timeTriggerLookup(JsonWriter out, List<Step> trace) throws IOException {
+        out.name("triggerLookupNs").beginObject();
+        for (int n : ROUTINE_COUNTS) {
+            List<Routine> routines = scaledRoutines(n);
+            TriggerIndex index = TriggerIndex.build(routines);
+            int samples = trace.size() / LOOKUP_BATCH;
+            long[] indexed = new long[samples];
+            long[] scanned = new long[samples];
+            for (int pass = 0; pass < 2; pass++) {
+                // The first pass warms up
+                for (int s = 0; s < samples; s++) {
+                    int from = s * LOOKUP_BATCH;
+                    long t0 = System.nanoTime();
+                    int found = 0;
+                    for (int i = from; i < from + LOOKUP_BATCH; i++) {
+                        found += indexLookup(index, i == 0 ? "" : trace.get(i - 1).pkg, trace.get(i).pkg);
+                    }
+                    long t1 = System.nanoTime();
+                    for (int i = from; i < from + LOOKUP_BATCH; i++) {
+                        found -= legacyScan(routines, i == 0 ? "" : trace.get(i - 1).pkg, trace.get(i).pkg);
+                    }
+                    long t2 = System.nanoTime();
+                    if (found != 0) throw new IllegalStateException("Index and scan disagree");
+                    indexed[s] = (t1 - t0) / LOOKUP_BATCH;
+                    scanned[s] = (t2 - t1) / LOOKUP_BATCH;
+                }
+            }
+            out.name(String.valueOf(n)).beginObject();
+            writePercentiles(out, "index", indexed);
+            writePercentiles(out, "legacyScan", scanned);
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private static int indexLookup(TriggerIndex index, String oldPkg, String newPkg) {
+        TriggerIndex.Bucket entering = index.bucket(newPkg);
+        int found = 0;
+        for (TriggerIndex.Trigger t : entering.launched) {
+            if (t.routine.enabled) found++;
+        }
+        for (TriggerIndex.Trigger t : index.bucket(oldPkg).exiting) {
+            if (t.routine.enabled) found++;
+        }
+        for (TriggerIndex.Trigger t : entering.used) {
+            if (t.routine.enabled) found++;
+        }
+        return found;
+    }
+
+    private static int legacyScan(List<Routine> routines, String oldPkg, String newPkg) {
+        int found = 0;
+        for (Routine r : routines) {
+            if (!r.enabled) continue;
+            if ("launched".equals(r.cond) || "used".equals(r.cond)) {
+                for (Routine.AppInfo app : r.apps) {
+                    if (app.pkg.equals(newPkg)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+            if ("exiting".equals(r.cond)) {
+                for (Routine.AppInfo app : r.apps) {
+                    if (app.pkg.equals(oldPkg)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // The streaming codec against the reflective Gson it replaced, in time and bytes allocated per call
+    private static void timeCodec(JsonWriter out, List<Routine> routines) throws IOException {
+        Gson gson = new Gson();
+        String json = RoutineCodec.encodeList(routines);
+        long[] decode = new long[200];
+        long[] gsonDecode = new long[200];
+        long[] encode = new long[200];
+        long[] gsonEncode = new long[200];
+        long[] bytes = new long[4];
+        for (int i = -50; i < decode.length; i++) {
+            long a0 = allocatedBytes();
+            long t0 = System.nanoTime();
+            blackhole = RoutineCodec.decodeList(json).size();
+            long t1 = System.nanoTime();
+            long a1 = allocatedBytes();
+            blackhole = gson.fromJson(json, Routine[].class).length;
+            long t2 = System.nanoTime();
+            long a2 = allocatedBytes();
+            blackhole = RoutineCodec.encodeList(routines).length();
+            long t3 = System.nanoTime();
+            long a3 = allocatedBytes();
+            blackhole = gson.toJson(routines).length();
+            long t4 = System.nanoTime();
+            long a4 = allocatedBytes();
+            if (i < 0) continue;
+            decode[i] = t1 - t0;
+            gsonDecode[i] = t2 - t1;
+            encode[i] = t3 - t2;
+            gsonEncode[i] = t4 - t3;
+            bytes[0] += a1 - a0;
+            bytes[1] += a2 - a1;
+            bytes[2] += a3 - a2;
+            bytes[3] += a4 - a3;
+        }
+        out.name("routineCodec").beginObject();
+        out.name("routines").value(routines.size());
+        out.name("jsonChars").value(json.length());
+        writePercentiles(out, "decodeNs", decode);
+        writePercentiles(out, "gsonDecodeNs", gsonDecode);
+        writePercentiles(out, "encodeNs", encode);
+        writePercentiles(out, "gsonEncodeNs", gsonEncode);
+        // Per call; -1 where the JVM cannot count a thread's allocations
+        boolean counted = allocatedBytes() >= 0;
+        String[] names = {"decodeBytes", "gsonDecodeBytes", "encodeBytes", "gsonEncodeBytes"};
+        for (int k = 0; k < names.length; k++) {
+            out.name(names[k]).value(counted ? bytes[k] / decode.length : -1);
+        }
+        out.endObject();
+    }
+
+    // Bytes this thread has allocated so far, or -1 when the JVM does not say
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Switching one routine on or off at each size: RoutineManager rewriting that routine's file,
+    // against the original manager that decoded and re-encoded the whole list in one preferences string
+    private static void timeToggle(JsonWriter out) throws IOException {
+        out.name("toggleNs").beginObject();
+        for (int n : ROUTINE_COUNTS) {
+            List<Routine> routines = scaledRoutines(n);
+            File filesDir = TestFiles.newDir();
+            try {
+                RoutineManager manager = new RoutineManager(new FakePreferences(), filesDir);
+                manager.saveRoutines(routines);
+                LegacyRoutines legacy = new LegacyRoutines(new File(filesDir, "prefs.xml"));
+                legacy.save(routines);
+                long[] current = new long[n >= 1000 ? 50 : 200];
+                long[] single = new long[current.length];
+                for (int i = -20; i < current.length; i++) {
+                    String id = routines.get(Math.floorMod(i * 31, n)).id;
+                    boolean enabled = (i & 1) == 0;
+                    long t0 = System.nanoTime();
+                    manager.toggleRoutine(id, enabled);
+                    long t1 = System.nanoTime();
+                    legacy.toggle(id, enabled);
+                    long t2 = System.nanoTime();
+                    if (i < 0) continue;
+                    current[i] = t1 - t0;
+                    single[i] = t2 - t1;
+                }
+                out.name(String.valueOf(n)).beginObject();
+                writePercentiles(out, "routineStore", current);
+                writePercentiles(out, "singlePrefsString", single);
+                out.endObject();
+            } finally {
+                TestFiles.delete(filesDir);
+            }
+        }
+        out.endObject();
+    }
+
+    // Saving one routine and loading them all, as RoutineManager does, on a scratch directory
+    private static void timeStore(JsonWriter out, List<Routine> routines) throws IOException {
+        File filesDir = TestFiles.newDir();
+        try {
+            RoutineStore store = new RoutineStore(filesDir);
+            for (Routine r : routines) {
+                store.put(r);
+            }
+            store.writeOrder(routines);
+            long[] put = new long[200];
+            for (int i = -50; i < put.length; i++) {
+                Routine r = routines.get(Math.floorMod(i, routines.size()));
+                long t0 = System.nanoTime();
+                store.put(r);
+                if (i >= 0) put[i] = System.nanoTime() - t0;
+            }
+            long[] load = new long[100];
+            for (int i = -20; i < load.length; i++) {
+                long t0 = System.nanoTime();
+                blackhole = store.loadAll().size();
+                if (i >= 0) load[i] = System.nanoTime() - t0;
+            }
+            writePercentiles(out, "storePutNs", put);
+            writePercentiles(out, "storeLoadAllNs", load);
+        } finally {
+            TestFiles.delete(filesDir);
+        }
+    }
+
+    // The data-URI step of getApps icon streaming, on an icon-sized PNG payload
+    private static long[] timeIconEncode(long seed) {
+        byte[] png = new byte[ICON_BYTES];
+        new Random(seed).nextBytes(png);
+        Base64.Encoder encoder = Base64.getEncoder();
+        long[] samples = new long[500];
+        for (int i = -100; i < samples.length; i++) {
+            long t0 = System.nanoTime();
+            String uri = "data:image/png;base64," + encoder.encodeToString(png);
+            if (i >= 0) samples[i] = System.nanoTime() - t0;
+            blackhole = uri.length();
+        }
+        return samples;
+    }
+
+    private static long[] timeEmptySpan() {
+        long[] samples = new long[1000];
+        for (int i = -200; i < samples.length; i++) {
+            long t0 = System.nanoTime();
+            if (i >= 0) samples[i] = System.nanoTime() - t0;
+        }
+        return samples;
+    }
+
+    private static void writePercentiles(JsonWriter out, String name, long[] samples) throws IOException {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long s : sorted) {
+            sum += s;
+        }
+        out.name(name).beginObject();
+        out.name("count").value(sorted.length);
+        if (sorted.length > 0) {
+            out.name("mean").value(sum / sorted.length);
+            out.name("p50").value(sorted[sorted.length / 2]);
+            out.name("p99").value(sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))]);
+            out.name("max").value(sorted[sorted.length - 1]);
+        }
+        out.endObject();
+    }
+
+    // The routine list as the first versions stored it. SharedPreferences writes its whole file
+    // after each apply(), so every save also writes the full string to disk.
+    private static final class LegacyRoutines {
+        private static final String KEY_ROUTINES = "routines";
+        private final SharedPreferences prefs = new FakePreferences();
+        private final Gson gson = new Gson();
+        private final File file;
+
+        LegacyRoutines(File file) {
+            this.file = file;
+        }
+
+        void save(List<Routine> routines) throws IOException {
+            String json = gson.toJson(routines);
+            prefs.edit().putString(KEY_ROUTINES, json).apply();
+            Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void toggle(String id, boolean enabled) throws IOException {
+            List<Routine> routines = new ArrayList<>(Arrays.asList(
+                    gson.fromJson(prefs.getString(KEY_ROUTINES, "[]"), Routine[].class)));
+            for (Routine r : routines) {
+                if (r.id.equals(id)) {
+                    r.enabled = enabled;
+                    break;
+                }
+            }
+            save(routines);
+        }
+    }
+
+    // Today's totals as the trace accumulates them; stands in for UsageAccumulator
+    private static final class VirtualUsage implements RuleEngine.UsageSource {
+        private final Map<String, long[]> totals = new HashMap<>();
+        private String current;
+        private long since;
+        private long day;
+
+        void onForeground(String pkg, long time) {
+            if (current != null) cell(current)[0] += time - since;
+            // Long traces span several days; totals start over at each one
+            if (time / DAY_MS != day) {
+                day = time / DAY_MS;
+                totals.clear();
+            }
+            current = pkg;
+            since = time;
+        }
+
+        @Override
+        public long getTodayTotal(String pkg, long now) {
+            long[] cell = totals.get(pkg);
+            long total = cell != null ? cell[0] : 0;
+            if (pkg.equals(current)) total += now - since;
+            return total;
+        }
+
+        private long[] cell(String pkg) {
+            long[] cell = totals.get(pkg);
+            if (cell == null) {
+                cell = new long[1];
+                totals.put(pkg, cell);
+            }
+            return cell;
+        }
+    }
+}
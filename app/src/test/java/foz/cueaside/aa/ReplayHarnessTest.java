@@ -0,0 +1,109 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.list;
+import static foz.cueaside.aa.TestRoutines.routine;
+import static foz.cueaside.aa.TestRoutines.used;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class ReplayHarnessTest {
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void launchAndExitFireOnTheirTransitions() {
+        List<ReplayHarness.Step> trace = trace(0, "a", MINUTE, "b", 2 * MINUTE, "a", 3 * MINUTE, "c");
+        ReplayHarness.Result result = ReplayHarness.replay(
+                list(routine("in", "launched", "a"), routine("out", "exiting", "a")), trace);
+        assertEquals(Arrays.asList("in a @0", "out a @1", "in a @2", "out a @3"), fired(result));
+    }
+
+    @Test
+    public void sessionFiresOnceTheStayReachesTheDuration() {
+        List<ReplayHarness.Step> trace = trace(0, "a", MINUTE, "b", 2 * MINUTE, "a", 10 * MINUTE, "b");
+        ReplayHarness.Result result = ReplayHarness.replay(list(used("s", "session", 3, "a")), trace);
+        // The first one-minute stay is too short; the second reaches three minutes at minute 5
+        assertEquals(Arrays.asList("s a @5"), fired(result));
+    }
+
+    @Test
+    public void dailyTotalAddsUpSeparateStays() {
+        List<ReplayHarness.Step> trace = trace(0, "a", 2 * MINUTE, "b", 3 * MINUTE, "a", 10 * MINUTE, "b");
+        ReplayHarness.Result result = ReplayHarness.replay(list(used("t", "total", 3, "a")), trace);
+        assertEquals(Arrays.asList("t a @4"), fired(result));
+    }
+
+    @Test
+    public void sharedBudgetCountsTheWholeGroup() {
+        List<ReplayHarness.Step> trace = trace(0, "a", 2 * MINUTE, "b", 3 * MINUTE, "c", 4 * MINUTE, "b",
+                10 * MINUTE, "c");
+        ReplayHarness.Result result = ReplayHarness.replay(list(used("g", "shared", 4, "a", "b")), trace);
+        assertEquals(Arrays.asList("g b @5"), fired(result));
+    }
+
+    @Test
+    public void syntheticReplayIsReproducible() {
+        List<Routine> routines = ReplayHarness.syntheticRoutines();
+        ReplayHarness.Result first = ReplayHarness.replay(routines, ReplayHarness.synthetic(5000, 0, 7));
+        ReplayHarness.Result second = ReplayHarness.replay(routines, ReplayHarness.synthetic(5000, 0, 7));
+        assertTrue(first.fired.size() > 0);
+        assertEquals(fired(first), fired(second));
+        assertEquals(first.timersRun, second.timersRun);
+    }
+
+    // Kept under build/reports so runs can be compared across versions
+    @Test
+    public void benchmarkWritesAVersionedReport() throws Exception {
+        String report = ReplayHarness.benchmark(null, 20000, 42);
+        File dir = new File("build/reports/replay");
+        dir.mkdirs();
+        Files.write(new File(dir, "benchmark.json").toPath(), report.getBytes(StandardCharsets.UTF_8));
+        JsonObject json = JsonParser.parseString(report).getAsJsonObject();
+        assertEquals(ReplayHarness.REPORT_VERSION, json.get("reportVersion").getAsInt());
+        assertEquals(20000, json.get("events").getAsInt());
+        assertEquals(20000, json.getAsJsonObject("evaluationNs").get("count").getAsInt());
+        for (String timing : new String[]{"storePutNs", "storeLoadAllNs", "iconEncodeNs", "emptySpanNs"}) {
+            assertTrue(timing, json.getAsJsonObject(timing).get("count").getAsInt() > 0);
+        }
+        JsonObject codec = json.getAsJsonObject("routineCodec");
+        for (String timing : new String[]{"decodeNs", "gsonDecodeNs", "encodeNs", "gsonEncodeNs"}) {
+            assertTrue(timing, codec.getAsJsonObject(timing).get("count").getAsInt() > 0);
+        }
+        assertTrue(codec.has("decodeBytes") && codec.has("gsonDecodeBytes"));
+        JsonObject lookup = json.getAsJsonObject("triggerLookupNs");
+        JsonObject toggle = json.getAsJsonObject("toggleNs");
+        for (String n : new String[]{"10", "100", "1000"}) {
+            assertTrue(n, toggle.getAsJsonObject(n).getAsJsonObject("routineStore").get("count").getAsInt() > 0);
+            assertTrue(n, toggle.getAsJsonObject(n).getAsJsonObject("singlePrefsString").get("count").getAsInt() > 0);
+            assertTrue(n, lookup.getAsJsonObject(n).getAsJsonObject("index").get("count").getAsInt() > 0);
+            assertTrue(n, lookup.getAsJsonObject(n).getAsJsonObject("legacyScan").get("count").getAsInt() > 0);
+        }
+    }
+
+    // Alternating times and packages
+    private static List<ReplayHarness.Step> trace(Object... steps) {
+        List<ReplayHarness.Step> trace = new ArrayList<>();
+        for (int i = 0; i < steps.length; i += 2) {
+            trace.add(new ReplayHarness.Step(((Number) steps[i]).longValue(), (String) steps[i + 1]));
+        }
+        return trace;
+    }
+
+    // "<routine> <pkg> @<minute>", to the minute
+    private static List<String> fired(ReplayHarness.Result result) {
+        List<String> fired = new ArrayList<>();
+        for (ReplayHarness.Fired f : result.fired) {
+            fired.add(f.routineId + " " + f.pkg + " @" + f.time / MINUTE);
+        }
+        return fired;
+    }
+}
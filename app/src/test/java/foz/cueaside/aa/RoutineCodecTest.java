@@ -0,0 +1,192 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.constraint;
+import static foz.cueaside.aa.TestRoutines.list;
+import static foz.cueaside.aa.TestRoutines.routine;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class RoutineCodecTest {
+    private static final String PNG = "data:image/png;base64,iVBORw0KGgo=";
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void plainRoutineMatchesGsonBothWays() throws Exception {
+        assertBothWays(routine("plain", "launched", "a"));
+    }
+
+    @Test
+    public void iconsMatchGsonBothWays() throws Exception {
+        Routine r = routine("icons", "exiting", "a", "b");
+        r.apps.get(0).icon = PNG;
+        r.apps.get(1).icon = "🙂";
+        r.apps.get(1).iconKey = "b@1";
+        r.icon = new Routine.IconInfo();
+        r.icon.type = "lib";
+        r.icon.src = PNG;
+        r.icon.e = "⏰";
+        assertBothWays(r);
+
+        Routine ref = routine("ref", "launched", "a");
+        ref.icon = new Routine.IconInfo();
+        ref.icon.type = "app";
+        ref.icon.pkg = "a";
+        ref.icon.src = "blob:0123abcd";
+        assertBothWays(ref);
+    }
+
+    @Test
+    public void constraintsMatchGsonBothWays() throws Exception {
+        Routine r = routine("when", "used", "a");
+        r.timeMode = "shared";
+        r.period = "week";
+        r.unit = "h";
+        r.dur = 2;
+        Routine.Constraint time = constraint("time");
+        time.from = 22 * 60;
+        time.to = 6 * 60;
+        Routine.Constraint days = constraint("days");
+        days.days = 0b0111110;
+        Routine.Constraint launches = constraint("launches");
+        launches.count = 5;
+        Routine.Constraint group = constraint("groupUsage");
+        group.pkgs = new ArrayList<>(Arrays.asList("a", "b"));
+        group.dur = 30;
+        group.unit = "m";
+        r.when = new ArrayList<>(Arrays.asList(time, days, launches, group));
+        assertBothWays(r);
+    }
+
+    @Test
+    public void absentAndNullFieldsMatchGsonBothWays() throws Exception {
+        Routine bare = new Routine();
+        assertBothWays(bare);
+
+        Routine holes = routine("holes", "launched", "a");
+        holes.apps.add(null);
+        holes.apps.add(new Routine.AppInfo());
+        holes.when = new ArrayList<>();
+        holes.when.add(null);
+        holes.when.add(constraint(null));
+        holes.title = null;
+        holes.unit = null;
+        holes.timeMode = null;
+        assertBothWays(holes);
+    }
+
+    @Test
+    public void listsMatchGsonBothWays() throws Exception {
+        Routine a = routine("a", "launched", "x");
+        a.apps.get(0).icon = PNG;
+        List<Routine> routines = list(a, routine("b", "exiting", "y", "z"), new Routine());
+        assertJsonEquals(gson.toJson(routines), RoutineCodec.encodeList(routines));
+
+        List<Routine> decoded = RoutineCodec.decodeList(gson.toJson(routines));
+        assertEquals(3, decoded.size());
+        assertJsonEquals(gson.toJson(routines), gson.toJson(decoded));
+    }
+
+    @Test
+    public void explicitNullsReadAsAbsent() throws Exception {
+        Routine r = RoutineCodec.decode("{\"id\":\"n\",\"apps\":null,\"icon\":null,\"when\":null,\"dur\":null,"
+                + "\"enabled\":null,\"title\":null}");
+        assertEquals("n", r.id);
+        assertNull(r.apps);
+        assertNull(r.icon);
+        assertNull(r.when);
+        assertEquals(0, r.dur);
+        assertFalse(r.enabled);
+        assertNull(r.title);
+        assertJsonEquals(gson.toJson(gson.fromJson("{\"id\":\"n\"}", Routine.class)), gson.toJson(r));
+    }
+
+    @Test
+    public void nullListsAndEntries() throws Exception {
+        assertTrue(RoutineCodec.decodeList("null").isEmpty());
+        assertTrue(RoutineCodec.decodeList("[]").isEmpty());
+        // A null routine in the array is dropped, as the store expects
+        assertEquals(1, RoutineCodec.decodeList("[null,{\"id\":\"x\"}]").size());
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws Exception {
+        Routine r = RoutineCodec.decode("{\"id\":\"u\",\"extra\":{\"deep\":[1,2,{\"x\":null}]},\"cond\":\"exiting\","
+                + "\"apps\":[{\"pkg\":\"a\",\"future\":true}],\"icon\":{\"type\":\"preset\",\"size\":3},"
+                + "\"when\":[{\"type\":\"days\",\"days\":3,\"tz\":\"UTC\"}]}");
+        assertEquals("u", r.id);
+        assertEquals("exiting", r.cond);
+        assertEquals("a", r.apps.get(0).pkg);
+        assertEquals("preset", r.icon.type);
+        assertEquals(3, r.when.get(0).days);
+    }
+
+    @Test
+    public void booleanStringsReadLikeGson() throws Exception {
+        String json = "{\"id\":\"b\",\"enabled\":\"true\",\"bubble\":\"false\",\"highPriority\":true}";
+        Routine codec = RoutineCodec.decode(json);
+        Routine reflective = gson.fromJson(json, Routine.class);
+        assertEquals(reflective.enabled, codec.enabled);
+        assertEquals(reflective.bubble, codec.bubble);
+        assertEquals(reflective.highPriority, codec.highPriority);
+    }
+
+    @Test
+    public void iconRefPrefixReplacesInlineIcons() throws Exception {
+        Routine r = routine("r", "launched", "a", "b");
+        r.apps.get(0).icon = PNG;
+        r.apps.get(1).icon = "blob:feed";
+        r.icon = new Routine.IconInfo();
+        r.icon.src = PNG;
+        StringWriter sw = new StringWriter();
+        RoutineCodec.write(new JsonWriter(sw), r, "icon:");
+        String json = sw.toString();
+
+        assertFalse(json.contains(PNG));
+        assertTrue(json.contains("\"iconRef\":\"icon:r:0\""));
+        assertTrue(json.contains("\"iconRef\":\"blob:feed\""));
+        assertTrue(json.contains("\"iconRef\":\"icon:r:icon\""));
+    }
+
+    @Test
+    public void routinesSurviveEncodeDecode() throws Exception {
+        Routine r = routine("same", "used", "a", "b");
+        r.seqId = 42;
+        r.timeout = 30;
+        r.bubble = true;
+        r.highPriority = true;
+        r.cueName = "Break";
+        r.apps.get(0).icon = PNG;
+        Routine back = RoutineCodec.decode(RoutineCodec.encode(r));
+        assertJsonEquals(gson.toJson(r), gson.toJson(back));
+    }
+
+    // Codec output must read back through Gson, and Gson output through the codec, unchanged
+    private void assertBothWays(Routine r) throws Exception {
+        String expected = gson.toJson(r);
+        String encoded = RoutineCodec.encode(r);
+        assertJsonEquals(expected, encoded);
+        assertJsonEquals(expected, gson.toJson(gson.fromJson(encoded, Routine.class)));
+        assertJsonEquals(expected, gson.toJson(RoutineCodec.decode(expected)));
+
+        List<Routine> decoded = gson.fromJson(RoutineCodec.encodeList(list(r)), new TypeToken<List<Routine>>() {
+        }.getType());
+        assertJsonEquals(expected, gson.toJson(decoded.get(0)));
+    }
+
+    private static void assertJsonEquals(String expected, String actual) {
+        assertEquals(JsonParser.parseString(expected), JsonParser.parseString(actual));
+    }
+}
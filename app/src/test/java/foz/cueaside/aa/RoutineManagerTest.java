@@ -0,0 +1,274 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.routine;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.stream.JsonReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoutineManagerTest {
+    private File dir;
+    private RoutineManager manager;
+    private final List<RoutineManager.Delta> deltas = new ArrayList<>();
+    private final List<List<Routine>> changes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFiles.newDir();
+        manager = new RoutineManager(new FakePreferences(), dir);
+        manager.addOnRoutineDeltaListener(deltas::add);
+        manager.addOnRoutinesChangedListener(changes::add);
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    @Test
+    public void everyWriteBumpsTheRevisionByOne() {
+        long start = manager.getSnapshot().revision;
+        manager.addRoutine(routine("a", "launched", "p"));
+        manager.addRoutine(routine("b", "launched", "p"));
+        manager.toggleRoutine("a", false);
+        manager.deleteRoutine("b");
+        manager.saveRoutines(new ArrayList<>(manager.getRoutines()));
+        assertEquals(start + 5, manager.getSnapshot().revision);
+
+        long previous = start;
+        for (RoutineManager.Delta d : deltas) {
+            assertEquals(previous, d.base);
+            assertEquals(d.base + 1, d.revision);
+            previous = d.revision;
+        }
+        assertEquals(5, deltas.size());
+    }
+
+    @Test
+    public void noOpsLeaveTheRevisionAlone() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        long revision = manager.getSnapshot().revision;
+        manager.deleteRoutine("missing");
+        manager.toggleRoutine("missing", false);
+        manager.apply(new RoutineManager.Batch());
+        assertEquals(revision, manager.getSnapshot().revision);
+        assertEquals(1, deltas.size());
+    }
+
+    @Test
+    public void addDeltaCarriesTheRoutineAndTheNewOrder() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        Routine b = routine("b", "launched", "p");
+        manager.addRoutine(b);
+
+        RoutineManager.Delta d = last();
+        assertEquals(1, d.upserted.size());
+        assertSame(b, d.upserted.get(0));
+        assertTrue(d.deleted.isEmpty());
+        assertEquals(Arrays.asList("b", "a"), d.order);
+    }
+
+    @Test
+    public void replaceDeltaCarriesOnlyTheChangedRoutine() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        manager.addRoutine(routine("b", "launched", "p"));
+        List<Routine> routines = new ArrayList<>(manager.getRoutines());
+        Routine edited = routines.get(1).copy();
+        edited.title = "Edited";
+        routines.set(1, edited);
+        manager.saveRoutines(routines);
+
+        RoutineManager.Delta d = last();
+        assertEquals(1, d.upserted.size());
+        assertEquals("Edited", d.upserted.get(0).title);
+        assertTrue(d.deleted.isEmpty());
+        assertNull(d.order);
+    }
+
+    @Test
+    public void toggleDeltaReplacesTheRoutineWithACopy() {
+        Routine a = routine("a", "launched", "p");
+        manager.addRoutine(a);
+        manager.toggleRoutine("a", false);
+
+        RoutineManager.Delta d = last();
+        assertEquals(1, d.upserted.size());
+        assertFalse(d.upserted.get(0).enabled);
+        assertNull(d.order);
+        // Readers holding the earlier snapshot keep seeing it unchanged
+        assertTrue(a.enabled);
+    }
+
+    @Test
+    public void deleteDeltaListsTheIdAndTheNewOrder() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        manager.addRoutine(routine("b", "launched", "p"));
+        manager.deleteRoutine("a");
+
+        RoutineManager.Delta d = last();
+        assertTrue(d.upserted.isEmpty());
+        assertEquals(Collections.singletonList("a"), d.deleted);
+        assertEquals(Collections.singletonList("b"), d.order);
+    }
+
+    @Test
+    public void reorderDeltaHasTheOrderAndNoRoutines() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        manager.addRoutine(routine("b", "launched", "p"));
+        manager.addRoutine(routine("c", "launched", "p"));
+        List<Routine> routines = new ArrayList<>(manager.getRoutines());
+        Collections.reverse(routines);
+        manager.saveRoutines(routines);
+
+        RoutineManager.Delta d = last();
+        assertTrue(d.upserted.isEmpty());
+        assertTrue(d.deleted.isEmpty());
+        assertEquals(Arrays.asList("a", "b", "c"), d.order);
+    }
+
+    @Test
+    public void batchCommitsOnceAndNotifiesOnce() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        manager.addRoutine(routine("b", "launched", "p"));
+        long revision = manager.getSnapshot().revision;
+        deltas.clear();
+        changes.clear();
+
+        manager.apply(new RoutineManager.Batch()
+                .add(routine("c", "exiting", "p"))
+                .toggle("a", false)
+                .delete("b")
+                .add(routine("d", "launched", "q")));
+
+        assertEquals(revision + 1, manager.getSnapshot().revision);
+        assertEquals(1, deltas.size());
+        assertEquals(1, changes.size());
+        RoutineManager.Delta d = deltas.get(0);
+        assertEquals(revision, d.base);
+        assertEquals(3, d.upserted.size());
+        assertEquals(Collections.singletonList("b"), d.deleted);
+        assertEquals(Arrays.asList("d", "c", "a"), d.order);
+        assertSame(changes.get(0), manager.getRoutines());
+    }
+
+    @Test
+    public void batchOpsApplyInOrder() {
+        manager.apply(new RoutineManager.Batch()
+                .add(routine("a", "launched", "p"))
+                .toggle("a", false)
+                .delete("a")
+                .add(routine("a", "exiting", "p")));
+
+        assertEquals(1, manager.getRoutines().size());
+        Routine a = manager.getRoutines().get(0);
+        assertEquals("exiting", a.cond);
+        assertTrue(a.enabled);
+    }
+
+    @Test
+    public void writesSurviveAReload() {
+        manager.apply(new RoutineManager.Batch()
+                .add(routine("a", "launched", "p"))
+                .add(routine("b", "exiting", "p", "q")));
+        manager.toggleRoutine("a", false);
+
+        List<Routine> reloaded = new RoutineManager(new FakePreferences(), dir).getRoutines();
+        assertEquals(2, reloaded.size());
+        assertEquals("b", reloaded.get(0).id);
+        assertEquals(2, reloaded.get(0).apps.size());
+        assertEquals("a", reloaded.get(1).id);
+        assertFalse(reloaded.get(1).enabled);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotListIsReadOnly() {
+        manager.addRoutine(routine("a", "launched", "p"));
+        manager.getRoutines().add(routine("b", "launched", "p"));
+    }
+
+    @Test
+    public void importAddsReplacesAndReportsSkips() throws Exception {
+        manager.addRoutine(routine("a", "launched", "p"));
+        String json = "{\"version\":\"1\",\"routines\":[" + RoutineCodec.encode(routine("a", "exiting", "p")) + ","
+                + RoutineCodec.encode(routine("b", "launched", "q")) + ",{\"id\":\"c\"}]}";
+        RoutineManager.ImportResult result = manager.importRoutines(new JsonReader(new StringReader(json)));
+
+        assertEquals(1, result.added);
+        assertEquals(1, result.replaced);
+        assertEquals(1, result.skipped);
+        assertEquals(1, result.problems.size());
+        List<Routine> routines = manager.getRoutines();
+        assertEquals(2, routines.size());
+        assertEquals("a", routines.get(0).id);
+        assertEquals("exiting", routines.get(0).cond);
+        assertEquals("b", routines.get(1).id);
+        // One published revision for the whole file
+        assertEquals(2, deltas.size());
+    }
+
+    @Test
+    public void importKeepsTheIconsOfWhatItCommits() throws Exception {
+        Routine r = routine("i", "launched", "p");
+        r.apps.get(0).icon = "data:image/png;base64,AAAA";
+        manager.importRoutines(new JsonReader(new StringReader("[" + RoutineCodec.encode(r) + "]")));
+
+        Routine stored = manager.getRoutines().get(0);
+        assertTrue(IconStore.isRef(stored.apps.get(0).icon));
+        assertEquals(1, iconFiles());
+        assertNotNull(manager.resolveIcon(stored.apps.get(0).icon));
+    }
+
+    @Test
+    public void abortedImportLeavesNoIconsBehind() throws Exception {
+        Routine r = routine("i", "launched", "p");
+        r.apps.get(0).icon = "data:image/png;base64,AAAA";
+        String json = "[" + RoutineCodec.encode(r) + ",{\"id\":";
+        try {
+            manager.importRoutines(new JsonReader(new StringReader(json)));
+            throw new AssertionError("truncated import was accepted");
+        } catch (IOException expected) {
+            // The file ends mid-routine
+        }
+        assertTrue(manager.getRoutines().isEmpty());
+        assertEquals(0, iconFiles());
+    }
+
+    @Test
+    public void abortedImportKeepsIconsOtherRoutinesHold() throws Exception {
+        Routine kept = routine("k", "launched", "p");
+        kept.apps.get(0).icon = "data:image/png;base64,AAAA";
+        manager.addRoutine(kept);
+        Routine r = routine("i", "launched", "p");
+        r.apps.get(0).icon = "data:image/png;base64,AAAA";
+        try {
+            manager.importRoutines(new JsonReader(new StringReader("[" + RoutineCodec.encode(r) + ",{")));
+        } catch (IOException expected) {
+            // Cut short after the first routine
+        }
+        assertEquals(1, iconFiles());
+        assertNotNull(manager.resolveIcon(manager.getRoutines().get(0).apps.get(0).icon));
+    }
+
+    private int iconFiles() {
+        File[] files = new File(dir, "icons").listFiles();
+        return files != null ? files.length : 0;
+    }
+
+    private RoutineManager.Delta last() {
+        return deltas.get(deltas.size() - 1);
+    }
+}
@@ -0,0 +1,140 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.list;
+import static foz.cueaside.aa.TestRoutines.routine;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoutineStoreTest {
+    private File filesDir;
+    private File live;
+    private File staging;
+    private File retired;
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = TestFiles.newDir();
+        live = new File(filesDir, "routines");
+        staging = new File(filesDir, "routines.staging");
+        retired = new File(filesDir, "routines.old");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(filesDir);
+    }
+
+    @Test
+    public void commitSwapsInTheStagedRoutines() throws Exception {
+        RoutineStore store = new RoutineStore(filesDir);
+        write(store, "old");
+        RoutineStore.Staging s = store.stage();
+        Routine r = routine("new", "launched", "a");
+        s.put(r);
+        s.commit(list(r));
+
+        assertEquals(Arrays.asList("new"), ids(new RoutineStore(filesDir).loadAll()));
+        assertFalse(staging.exists());
+        assertFalse(retired.exists());
+    }
+
+    @Test
+    public void abortLeavesTheLiveRoutines() throws Exception {
+        RoutineStore store = new RoutineStore(filesDir);
+        write(store, "old");
+        RoutineStore.Staging s = store.stage();
+        s.put(routine("new", "launched", "a"));
+        s.abort();
+
+        assertEquals(Arrays.asList("old"), ids(new RoutineStore(filesDir).loadAll()));
+        assertFalse(staging.exists());
+    }
+
+    @Test
+    public void recoverFinishesASwapCutShortBetweenRenames() throws Exception {
+        write(new RoutineStore(filesDir), "old");
+        assertTrue(live.renameTo(retired));
+        writeTree(staging, "new");
+
+        assertEquals(Arrays.asList("new"), ids(new RoutineStore(filesDir).loadAll()));
+        assertFalse(staging.exists());
+        assertFalse(retired.exists());
+    }
+
+    @Test
+    public void recoverPutsTheOldRoutinesBackWhenStagingIsIncomplete() throws Exception {
+        write(new RoutineStore(filesDir), "old");
+        assertTrue(live.renameTo(retired));
+        writeTree(staging, "new");
+        assertTrue(new File(staging, "order").delete());
+
+        assertEquals(Arrays.asList("old"), ids(new RoutineStore(filesDir).loadAll()));
+        assertFalse(staging.exists());
+        assertFalse(retired.exists());
+    }
+
+    @Test
+    public void recoverDropsAnUncommittedImport() throws Exception {
+        write(new RoutineStore(filesDir), "old");
+        writeTree(staging, "new");
+
+        assertEquals(Arrays.asList("old"), ids(new RoutineStore(filesDir).loadAll()));
+        assertFalse(staging.exists());
+    }
+
+    @Test
+    public void recoverKeepsLeftoversWhileTheLiveTreeIsIncomplete() throws Exception {
+        writeTree(retired, "old");
+        assertTrue(live.mkdirs());
+
+        new RoutineStore(filesDir);
+        assertTrue(retired.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void commitRefusesToDropTheOnlyCopyOfTheRoutines() throws Exception {
+        RoutineStore store = new RoutineStore(filesDir);
+        writeTree(retired, "old");
+        RoutineStore.Staging s = store.stage();
+        s.commit(new ArrayList<>());
+    }
+
+    private static void write(RoutineStore store, String... ids) throws Exception {
+        List<Routine> routines = new ArrayList<>();
+        for (String id : ids) {
+            Routine r = routine(id, "launched", "a");
+            store.put(r);
+            routines.add(r);
+        }
+        store.writeOrder(routines);
+    }
+
+    // A complete store tree at dir, written through a scratch store beside it
+    private void writeTree(File dir, String... ids) throws Exception {
+        File scratch = TestFiles.newDir();
+        try {
+            write(new RoutineStore(scratch), ids);
+            assertTrue(new File(scratch, "routines").renameTo(dir));
+        } finally {
+            TestFiles.delete(scratch);
+        }
+    }
+
+    private static List<String> ids(List<Routine> routines) {
+        List<String> ids = new ArrayList<>();
+        for (Routine r : routines) {
+            ids.add(r.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,256 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.constraint;
+import static foz.cueaside.aa.TestRoutines.list;
+import static foz.cueaside.aa.TestRoutines.routine;
+import static foz.cueaside.aa.TestRoutines.used;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RuleEngineTest {
+    private static final long MINUTE = 60 * 1000L;
+
+    private final Map<String, Long> totals = new HashMap<>();
+    private final List<String> calls = new ArrayList<>();
+    private final RuleEngine.Actions actions = new RuleEngine.Actions() {
+        @Override
+        public void fire(TriggerIndex.Trigger t, String pkg) {
+            calls.add("fire " + t.routine.id + " " + pkg);
+        }
+
+        @Override
+        public void startSession(TriggerIndex.Trigger t, String pkg) {
+            calls.add("session " + t.routine.id + " " + pkg);
+        }
+
+        @Override
+        public void checkTotal(TriggerIndex.Trigger t, String pkg) {
+            calls.add("total " + t.routine.id + " " + pkg);
+        }
+
+        @Override
+        public void checkBudget(TriggerIndex.Trigger t, String pkg) {
+            calls.add("budget " + t.routine.id + " " + pkg);
+        }
+    };
+    private RuleEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new RuleEngine((pkg, now) -> {
+            Long total = totals.get(pkg);
+            return total != null ? total : 0;
+        });
+    }
+
+    @Test
+    public void launchedFiresForTheAppComingToTheFront() {
+        TriggerIndex index = TriggerIndex.build(list(routine("l", "launched", "a")));
+        engine.onTransition(index, "b", "a", at(Calendar.MONDAY, 12, 0), actions);
+        engine.onTransition(index, "a", "b", at(Calendar.MONDAY, 12, 1), actions);
+        assertEquals(Arrays.asList("fire l a"), calls);
+    }
+
+    @Test
+    public void exitingFiresForTheAppLeavingTheFront() {
+        TriggerIndex index = TriggerIndex.build(list(routine("e", "exiting", "a")));
+        engine.onTransition(index, "b", "a", at(Calendar.MONDAY, 12, 0), actions);
+        engine.onTransition(index, "a", null, at(Calendar.MONDAY, 12, 1), actions);
+        assertEquals(Arrays.asList("fire e a"), calls);
+    }
+
+    @Test
+    public void usageTriggersDispatchOnTheirTimeMode() {
+        TriggerIndex index = TriggerIndex.build(list(used("s", "session", 5, "a"), used("t", "total", 5, "a"),
+                used("b", "shared", 5, "a")));
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 12, 0), actions);
+        assertEquals(Arrays.asList("session s a", "total t a", "budget b a"), calls);
+    }
+
+    @Test
+    public void resumeStartsUsageWithoutALaunch() {
+        TriggerIndex index = TriggerIndex.build(list(routine("l", "launched", "a"), used("s", "session", 5, "a"),
+                routine("e", "exiting", "a")));
+        engine.onResume(index, "a", at(Calendar.MONDAY, 12, 0), actions);
+        assertEquals(Arrays.asList("session s a"), calls);
+    }
+
+    @Test
+    public void resumeIsNotCountedAsALaunch() {
+        Routine r = routine("c", "launched", "a");
+        r.when = Arrays.asList(launches(2));
+        TriggerIndex index = TriggerIndex.build(list(r));
+        long start = at(Calendar.MONDAY, 12, 0);
+        engine.onResume(index, "a", start, actions);
+        engine.onTransition(index, "a", "a", start + MINUTE, actions);
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void timeWindowGatesTheTrigger() {
+        Routine r = routine("t", "launched", "a");
+        r.when = Arrays.asList(time(9 * 60, 17 * 60));
+        TriggerIndex index = TriggerIndex.build(list(r));
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 8, 59), actions);
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 9, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 16, 59), actions);
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 17, 0), actions);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void timeWindowCanWrapPastMidnight() {
+        Routine r = routine("n", "launched", "a");
+        r.when = Arrays.asList(time(22 * 60, 6 * 60));
+        TriggerIndex index = TriggerIndex.build(list(r));
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 23, 30), actions);
+        engine.onTransition(index, null, "a", at(Calendar.TUESDAY, 5, 59), actions);
+        engine.onTransition(index, null, "a", at(Calendar.TUESDAY, 6, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.TUESDAY, 21, 59), actions);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void daysOfWeekGateTheTrigger() {
+        Routine.Constraint weekdays = constraint("days");
+        weekdays.days = 0b0111110;
+        Routine r = routine("d", "launched", "a");
+        r.when = Arrays.asList(weekdays);
+        TriggerIndex index = TriggerIndex.build(list(r));
+        engine.onTransition(index, null, "a", at(Calendar.SUNDAY, 12, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 12, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.FRIDAY, 12, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.SATURDAY, 12, 0), actions);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void launchCountCountsThisLaunchAndThePastHour() {
+        Routine r = routine("c", "launched", "a");
+        r.when = Arrays.asList(launches(3));
+        TriggerIndex index = TriggerIndex.build(list(r));
+        long start = at(Calendar.MONDAY, 12, 0);
+        engine.onTransition(index, null, "a", start, actions);
+        engine.onTransition(index, null, "a", start + 10 * MINUTE, actions);
+        assertTrue(calls.isEmpty());
+        engine.onTransition(index, null, "a", start + 20 * MINUTE, actions);
+        assertEquals(1, calls.size());
+        // The first two launches have aged out of the hour by now
+        engine.onTransition(index, null, "a", start + 71 * MINUTE, actions);
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void launchCountCanReachTheFullHistory() {
+        Routine r = routine("c", "launched", "a");
+        r.when = Arrays.asList(launches(RuleEngine.LAUNCH_HISTORY));
+        TriggerIndex index = TriggerIndex.build(list(r));
+        long start = at(Calendar.MONDAY, 12, 0);
+        for (int i = 0; i < RuleEngine.LAUNCH_HISTORY + 5; i++) {
+            engine.onTransition(index, null, "a", start + i * 1000L, actions);
+        }
+        assertEquals(6, calls.size());
+    }
+
+    @Test
+    public void groupUsageComparesTodaysCombinedTotal() {
+        Routine.Constraint group = constraint("groupUsage");
+        group.pkgs = Arrays.asList("x", "y");
+        group.dur = 30;
+        group.unit = "m";
+        Routine r = routine("g", "launched", "a");
+        r.when = Arrays.asList(group);
+        TriggerIndex index = TriggerIndex.build(list(r));
+
+        totals.put("x", 20 * MINUTE);
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 12, 0), actions);
+        totals.put("y", 10 * MINUTE);
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 12, 1), actions);
+        assertEquals(Arrays.asList("fire g a"), calls);
+    }
+
+    @Test
+    public void everyConditionMustHold() {
+        Routine.Constraint sunday = constraint("days");
+        sunday.days = 1;
+        Routine r = routine("all", "launched", "a");
+        r.when = Arrays.asList(time(0, 12 * 60), sunday);
+        TriggerIndex index = TriggerIndex.build(list(r));
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 9, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.SUNDAY, 13, 0), actions);
+        engine.onTransition(index, null, "a", at(Calendar.SUNDAY, 9, 0), actions);
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void matchesRechecksConditionsAtALaterTime() {
+        Routine r = used("u", "session", 5, "a");
+        r.when = Arrays.asList(time(9 * 60, 10 * 60));
+        TriggerIndex index = TriggerIndex.build(list(r));
+        engine.onTransition(index, null, "a", at(Calendar.MONDAY, 9, 58), actions);
+        TriggerIndex.Trigger t = index.bucket("a").used[0];
+        assertTrue(engine.matches(t, "a", at(Calendar.MONDAY, 9, 59)));
+        assertEquals(false, engine.matches(t, "a", at(Calendar.MONDAY, 10, 3)));
+    }
+
+    @Test
+    public void compileRejectsTimeWindowsOutsideTheDayOrEmpty() {
+        assertNotNull(Conditions.compile(time(0, 1440)));
+        assertNotNull(Conditions.compile(time(1439, 0)));
+        assertNull(Conditions.compile(time(600, 600)));
+        assertNull(Conditions.compile(time(-1, 600)));
+        assertNull(Conditions.compile(time(1440, 600)));
+        assertNull(Conditions.compile(time(0, 1441)));
+        assertNull(Conditions.compile(time(0, -5)));
+    }
+
+    @Test
+    public void compileRejectsLaunchCountsBeyondTheHistory() {
+        assertNotNull(Conditions.compile(launches(1)));
+        assertNotNull(Conditions.compile(launches(RuleEngine.LAUNCH_HISTORY)));
+        assertNull(Conditions.compile(launches(0)));
+        assertNull(Conditions.compile(launches(RuleEngine.LAUNCH_HISTORY + 1)));
+    }
+
+    @Test
+    public void compileRejectsUnknownAndIncompleteConstraints() {
+        assertSame(Conditions.NONE, Conditions.compile((List<Routine.Constraint>) null));
+        assertNull(Conditions.compile(constraint("weather")));
+        assertNull(Conditions.compile(constraint(null)));
+        assertNull(Conditions.compile(constraint("groupUsage")));
+        assertNull(Conditions.compile(Arrays.asList(launches(2), time(5, 5))));
+    }
+
+    private static Routine.Constraint time(int from, int to) {
+        Routine.Constraint c = constraint("time");
+        c.from = from;
+        c.to = to;
+        return c;
+    }
+
+    private static Routine.Constraint launches(int count) {
+        Routine.Constraint c = constraint("launches");
+        c.count = count;
+        return c;
+    }
+
+    // A local time in a fixed week, so day and minute fields don't depend on when the test runs
+    private static long at(int dayOfWeek, int hour, int minute) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(2024, Calendar.JANUARY, 7 + dayOfWeek - Calendar.SUNDAY, hour, minute);
+        return c.getTimeInMillis();
+    }
+}
@@ -0,0 +1,25 @@
+package foz.cueaside.aa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// Scratch directories standing in for Context.getFilesDir()
+final class TestFiles {
+    private TestFiles() {
+    }
+
+    static File newDir() throws IOException {
+        return Files.createTempDirectory("cueaside").toFile();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,55 @@
+package foz.cueaside.aa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Small builders for routines in tests
+final class TestRoutines {
+    private TestRoutines() {
+    }
+
+    static Routine routine(String id, String cond, String... pkgs) {
+        Routine r = new Routine();
+        r.id = id;
+        r.cond = cond;
+        r.enabled = true;
+        r.unit = "m";
+        r.dur = 1;
+        r.timeMode = "session";
+        r.title = "Title " + id;
+        r.msg = "Message " + id;
+        r.apps = new ArrayList<>();
+        for (String pkg : pkgs) {
+            r.apps.add(app(pkg));
+        }
+        return r;
+    }
+
+    static Routine used(String id, String timeMode, int minutes, String... pkgs) {
+        Routine r = routine(id, "used", pkgs);
+        r.timeMode = timeMode;
+        r.dur = minutes;
+        return r;
+    }
+
+    static Routine.AppInfo app(String pkg) {
+        Routine.AppInfo a = new Routine.AppInfo();
+        a.pkg = pkg;
+        a.name = "App " + pkg;
+        return a;
+    }
+
+    static Routine.Constraint constraint(String type) {
+        Routine.Constraint c = new Routine.Constraint();
+        c.type = type;
+        return c;
+    }
+
+    static List<Routine> list(Routine... routines) {
+        List<Routine> list = new ArrayList<>();
+        for (Routine r : routines) {
+            list.add(r);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,127 @@
+package foz.cueaside.aa;
+
+import static foz.cueaside.aa.TestRoutines.list;
+import static foz.cueaside.aa.TestRoutines.routine;
+import static foz.cueaside.aa.TestRoutines.used;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class TriggerIndexTest {
+
+    @Test
+    public void emptyOrNullListGivesEmptyIndex() {
+        assertSame(TriggerIndex.EMPTY, TriggerIndex.build(null));
+        assertSame(TriggerIndex.EMPTY, TriggerIndex.build(new ArrayList<>()));
+        assertTrue(TriggerIndex.EMPTY.isEmpty());
+    }
+
+    @Test
+    public void triggersLandInTheBucketForTheirCondition() {
+        Routine launched = routine("l", "launched", "a");
+        Routine exiting = routine("e", "exiting", "a");
+        Routine session = used("s", "session", 5, "a");
+        TriggerIndex index = TriggerIndex.build(list(launched, exiting, session));
+
+        TriggerIndex.Bucket bucket = index.bucket("a");
+        assertEquals(1, bucket.launched.length);
+        assertSame(launched, bucket.launched[0].routine);
+        assertEquals(1, bucket.exiting.length);
+        assertSame(exiting, bucket.exiting[0].routine);
+        assertEquals(1, bucket.used.length);
+        assertSame(session, bucket.used[0].routine);
+        assertEquals(5 * 60 * 1000L, bucket.used[0].durationMs);
+    }
+
+    @Test
+    public void unknownPackagesAndNullGiveTheEmptyBucket() {
+        TriggerIndex index = TriggerIndex.build(list(routine("l", "launched", "a")));
+        assertSame(TriggerIndex.Bucket.EMPTY, index.bucket("b"));
+        assertSame(TriggerIndex.Bucket.EMPTY, index.bucket(null));
+    }
+
+    @Test
+    public void disabledRoutinesAreLeftOut() {
+        Routine off = routine("off", "launched", "a");
+        off.enabled = false;
+        TriggerIndex index = TriggerIndex.build(list(off));
+        assertTrue(index.isEmpty());
+        assertSame(TriggerIndex.Bucket.EMPTY, index.bucket("a"));
+    }
+
+    @Test
+    public void unusableRoutinesAreLeftOut() {
+        Routine noCond = routine("c", "sometimes", "a");
+        Routine noMode = used("m", null, 5, "a");
+        Routine noApps = routine("n", "launched");
+        noApps.apps = null;
+        Routine badConstraint = routine("w", "launched", "a");
+        badConstraint.when = new ArrayList<>(Arrays.asList(TestRoutines.constraint("weather")));
+        assertTrue(TriggerIndex.build(list(noCond, noMode, noApps, badConstraint)).isEmpty());
+    }
+
+    @Test
+    public void oneRoutineIsIndexedUnderEachOfItsApps() {
+        Routine r = routine("multi", "launched", "a", "b", "c");
+        TriggerIndex index = TriggerIndex.build(list(r));
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), index.packages());
+        for (String pkg : new String[]{"a", "b", "c"}) {
+            assertEquals(1, index.bucket(pkg).launched.length);
+            assertSame(r, index.bucket(pkg).launched[0].routine);
+        }
+        // Every package shares the one compiled trigger
+        assertSame(index.bucket("a").launched[0], index.bucket("c").launched[0]);
+    }
+
+    @Test
+    public void anAppListedTwiceFiresOnce() {
+        TriggerIndex index = TriggerIndex.build(list(routine("dup", "launched", "a", "a")));
+        assertEquals(1, index.bucket("a").launched.length);
+    }
+
+    @Test
+    public void routinesKeepTheirListOrderWithinABucket() {
+        Routine first = routine("1", "launched", "a");
+        Routine second = routine("2", "launched", "a", "b");
+        TriggerIndex.Bucket bucket = TriggerIndex.build(list(first, second)).bucket("a");
+        assertEquals(2, bucket.launched.length);
+        assertSame(first, bucket.launched[0].routine);
+        assertSame(second, bucket.launched[1].routine);
+    }
+
+    @Test
+    public void nullAppsAndPackagesAreSkipped() {
+        Routine r = routine("r", "exiting", "a");
+        r.apps.add(null);
+        r.apps.add(new Routine.AppInfo());
+        TriggerIndex index = TriggerIndex.build(list(r));
+        assertEquals(new HashSet<>(Arrays.asList("a")), index.packages());
+    }
+
+    @Test
+    public void sharedBudgetsAreListedSeparately() {
+        Routine shared = used("b", "shared", 30, "a", "b");
+        Routine total = used("t", "total", 30, "a");
+        TriggerIndex index = TriggerIndex.build(list(shared, total));
+        assertEquals(1, index.budgets().length);
+        assertSame(shared, index.budgets()[0].routine);
+        assertEquals(2, index.bucket("a").used.length);
+    }
+
+    @Test
+    public void unitsScaleTheDuration() {
+        Routine secs = used("s", "session", 45, "a");
+        secs.unit = "s";
+        Routine hours = used("h", "total", 2, "b");
+        hours.unit = "h";
+        TriggerIndex index = TriggerIndex.build(list(secs, hours));
+        assertEquals(45 * 1000L, index.bucket("a").used[0].durationMs);
+        assertEquals(2 * 60 * 60 * 1000L, index.bucket("b").used[0].durationMs);
+    }
+}